@@ -33,6 +33,9 @@ import com.google.android.gms.plus.model.people.Person;
 import com.google.android.imageloader.ImageLoader;
 import com.google.plus.samples.photohunt.PlusClientFragment.OnSignInListener;
 import com.google.plus.samples.photohunt.app.PhotoHuntApp;
+import com.google.plus.samples.photohunt.app.StartupScheduler;
+import com.google.plus.samples.photohunt.app.StartupTrace;
+import com.google.plus.samples.photohunt.auth.AuthManager;
 import com.google.plus.samples.photohunt.auth.AuthUtil;
 import com.google.plus.samples.photohunt.client.PhotoClient;
 import com.google.plus.samples.photohunt.model.User;
@@ -93,13 +96,14 @@ public abstract class BaseActivity extends SherlockFragmentActivity implements
 
 	/**
 	 * Stores the @link com.google.android.gms.common.SignInButton} for use in
-	 * the action bar.
+	 * the action bar. Inflated when first shown; see {@link #getSignInButton()}.
 	 */
 	protected SignInButton mSignInButton;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		StartupTrace.mark("activity-create");
 		getSupportActionBar().setDisplayShowHomeEnabled(false);
 
 		mPhotoClient = new PhotoClient();
@@ -114,12 +118,24 @@ public abstract class BaseActivity extends SherlockFragmentActivity implements
 		// AuthUtil.VISIBLE_ACTIVITIES describe the types of moment which we can
 		// read from or write
 		// to the user's vault.
+		StartupTrace.begin("session");
 		mPlus = PlusClientFragment.getPlusClientFragment(this, AuthUtil.SCOPES,
 				AuthUtil.VISIBLE_ACTIVITIES);
+	}
 
-		mSignInButton = (SignInButton) getLayoutInflater().inflate(
-				R.layout.sign_in_button, null);
-		mSignInButton.setOnClickListener(this);
+	@Override
+	protected void onPostCreate(Bundle savedInstanceState) {
+		super.onPostCreate(savedInstanceState);
+		getStartupScheduler().watchFirstFrame(this);
+
+		// Use the PhotoHunt session of an earlier activity, or one restored
+		// from a previous process, straight away rather than waiting for
+		// Google sign-in to complete. Called once subclasses have created
+		// their views.
+		User user = AuthManager.getInstance().getUser();
+		if (mPhotoUser == null && user != null) {
+			setAuthenticatedProfile(user);
+		}
 	}
 
 	@Override
@@ -166,17 +182,21 @@ public abstract class BaseActivity extends SherlockFragmentActivity implements
 
 			// Asynchronously authenticate with the PhotoHunt service and
 			// retrieve the associated
-			// PhotoHunt profile for the user.
+			// PhotoHunt profile for the user. The session established by
+			// an earlier activity is reused while its token is valid.
 			mAuthTask = new AsyncTask<Object, Void, User>() {
 				@Override
 				protected User doInBackground(Object... o) {
-					return AuthUtil.authenticate(BaseActivity.this, name);
+					return AuthManager.getInstance().signIn(name);
 				}
 
 				@Override
 				protected void onPostExecute(User result) {
 					if (result != null) {
-						setAuthenticatedProfile(result);
+						// Skip reloading if the session was already in use.
+						if (mPhotoUser == null || !mPhotoUser.id.equals(result.id)) {
+							setAuthenticatedProfile(result);
+						}
 						executePendingActions();
 						update();
 					} else {
@@ -199,6 +219,12 @@ public abstract class BaseActivity extends SherlockFragmentActivity implements
 	 */
 	@Override
 	public void onSignInFailed() {
+		if (mPhotoUser != null) {
+			// The restored session belongs to a user who is no longer signed in.
+			AuthManager.getInstance().signOut();
+			setAuthenticatedProfile(null);
+		}
+
 		update();
 	}
 
@@ -210,6 +236,14 @@ public abstract class BaseActivity extends SherlockFragmentActivity implements
 	 */
 	public void setAuthenticatedProfile(User profile) {
 		mPhotoUser = profile;
+
+		if (profile != null) {
+			StartupTrace.end("session");
+
+			// Send any uploads which were queued while the user was signed out or which were
+			// interrupted when the process last died.
+			((PhotoHuntApp) getApplication()).getUploadManager().start();
+		}
 	}
 
 	/**
@@ -256,13 +290,35 @@ public abstract class BaseActivity extends SherlockFragmentActivity implements
 			ActionBar.LayoutParams params = new ActionBar.LayoutParams(
 					ActionBar.LayoutParams.WRAP_CONTENT,
 					ActionBar.LayoutParams.WRAP_CONTENT, Gravity.RIGHT);
-			getSupportActionBar().setCustomView(mSignInButton, params);
+			getSupportActionBar().setCustomView(getSignInButton(), params);
 			getSupportActionBar().setDisplayShowCustomEnabled(true);
 		}
 
 		return true;
 	}
 
+	/**
+	 * @return the sign-in button, inflating it the first time it is needed
+	 *         so that signed in users never pay for it.
+	 */
+	protected SignInButton getSignInButton() {
+		if (mSignInButton == null) {
+			mSignInButton = (SignInButton) getLayoutInflater().inflate(
+					R.layout.sign_in_button, null);
+			mSignInButton.setOnClickListener(this);
+		}
+
+		return mSignInButton;
+	}
+
+	/**
+	 * @return the scheduler for work which should not delay the first frame
+	 *         after a cold start.
+	 */
+	protected StartupScheduler getStartupScheduler() {
+		return ((PhotoHuntApp) getApplication()).getStartupScheduler();
+	}
+
 	@Override
 	public void onClick(View view) {
 		if (view.getId() == R.id.sign_in_button) {
@@ -279,7 +335,7 @@ public abstract class BaseActivity extends SherlockFragmentActivity implements
 				public void onSuccess(Void result) {
 					mPlus.signOut();
 					// Invalidate the PhotoHunt session
-					AuthUtil.invalidateSession();
+					AuthManager.getInstance().signOut();
 				}
 
 				@Override
@@ -297,7 +353,7 @@ public abstract class BaseActivity extends SherlockFragmentActivity implements
 		case R.id.menu_item_sign_out:
 			mPlus.signOut();
 			// Invalidate the PhotoHunt session
-			AuthUtil.invalidateSession();
+			AuthManager.getInstance().signOut();
 			return true;
 		}
 
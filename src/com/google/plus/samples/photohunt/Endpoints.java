@@ -22,6 +22,16 @@ import android.util.Log;
 
 /**
  * The PhotoHunt API endpoints.
+ *
+ * The API host is read from {@code config.properties} the first time an endpoint is needed,
+ * rather than when this class is first touched.  {@link #preload()} starts that read on a
+ * background thread at startup, but it is not guaranteed to finish first: a URL built on the
+ * main thread before it has, such as the theme list requested as the first activity is
+ * created, waits on the main thread for the read.  URLs are built from templates split around
+ * their placeholders once, so building one only appends the parameters.
+ *
+ * Each endpoint also carries how long its responses may be served from the HTTP cache, which
+ * overrides the server's cache headers; see {@link #getMaxAge(String)}.
  */
 public class Endpoints {
 
@@ -30,91 +40,301 @@ public class Endpoints {
     /** The UserAgent string supplied with all PhotoHunt HTTP requests. */
     public static final String USER_AGENT = "PhotoHunt Agent";
 
-    /** The protocol and hostname used to access the PhotoHunt service. */
-    public static final String API_HOST;
+    public static final String ME_ID = "me";
 
-    /** The URL root used to access the PhotoHunt API. */
-    public static final String API_ROOT;
-    
-    /** The link that is embedded when sharing a photo on Google+. */
-    public static final String API_PHOTO_LINK;
-    
-    /** The API URL used to retrieve metadata about a single photo. */
-    public static final String PHOTO;
-    
-    /** The API URL used to retrieve an upload URL for a photo. */
-    public static final String PHOTO_UPLOAD;
-    
-    /** The API URL used to vote for a photo. */
-    public static final String PHOTO_VOTE;
+    /** {@link #getMaxAge(String)} for URLs whose freshness the server's headers decide. */
+    public static final int MAX_AGE_SERVER = -1;
 
-    /** The API URL used to retrieve the list of themes. */
-    public static final String THEME_LIST;
+    /** {@link #getMaxAge(String)} for URLs which must never be served from a cache. */
+    public static final int MAX_AGE_NEVER = 0;
 
-    /** The API URL used to retrieve the photos for a theme. */
-    public static final String THEME_PHOTO_LIST;
-    
-    /** The API URL used to retrieve the photos my friends have submitted to a theme. */
-    public static final String FRIENDS_PHOTO_LIST;
+    /** Themes change about once a day, so the theme list stays fresh for an hour. */
+    private static final int MAX_AGE_THEMES = 60 * 60;
 
-    /** The API URL used to retrieve the photos a user has uploaded for a theme. */
-    public static final String USER_THEME_PHOTO_LIST;
+    /** Photos carry vote counts, which change constantly. */
+    private static final int MAX_AGE_PHOTOS = 30;
 
-    /** The API URL used to retrieve the photos a user has uploaded to PhotoHunt. */
-    public static final String USER_PHOTO_LIST;
- 
-    /** The API URL used to connect to the PhotoHunt service. */
-    public static final String API_CONNECT;
+    private Endpoints() {
+    }
 
-    /** The API URL used to disconnect from the PhotoHunt service. */
-    public static final String API_DISCONNECT;
+    /**
+     * Load the configuration ahead of the first request.  May be called from any thread; a
+     * thread which needs an endpoint while this is running waits for it to finish.
+     */
+    public static void preload() {
+        Log.v(TAG, "Loaded configuration for " + Config.API_HOST);
+    }
 
-    public static final String ME_ID = "me";
-    
-    static {
-        Properties config = new Properties();
-        String apiHost = null;
-        
-        try {
-            config.load(Endpoints.class.getClassLoader().getResourceAsStream("config.properties"));
- 
-            apiHost = config.getProperty("api_host");
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to load configuration properties file", e);
-        } finally {
-            API_HOST = apiHost;
-            
-            if (API_HOST != null) {
-                API_ROOT = API_HOST + "/api";
-                
-                API_PHOTO_LINK = API_ROOT + "/image?id=%s";
-                
-                API_CONNECT = API_ROOT + "/connect";
-                API_DISCONNECT = API_ROOT + "/disconnect";
-                THEME_LIST = API_ROOT + "/themes?startIndex=%s&count=%s";
-                PHOTO_UPLOAD = API_ROOT + "/images";
-                PHOTO = API_ROOT + "/photos?photoId=%s";
-                THEME_PHOTO_LIST = API_ROOT + "/photos?themeId=%s";
-                USER_PHOTO_LIST = API_ROOT + "/photos?userId=%s";
-                USER_THEME_PHOTO_LIST = API_ROOT + "/photos?userId=%s&themeId=%s";
-                FRIENDS_PHOTO_LIST = API_ROOT + "/photos?userId=%s&themeId=%s&friends=true";
-                PHOTO_VOTE = API_ROOT + "/votes";
-            } else {
-                API_ROOT = null;
-                
-                API_PHOTO_LINK = null;
-                
-                API_CONNECT = null;
-                API_DISCONNECT = null;
-                THEME_LIST = null;
-                PHOTO_UPLOAD = null;
-                PHOTO = null;
-                THEME_PHOTO_LIST = null;
-                USER_PHOTO_LIST = null;
-                USER_THEME_PHOTO_LIST = null;
-                FRIENDS_PHOTO_LIST = null;
-                PHOTO_VOTE = null;
+    /**
+     * @return the link that is embedded when sharing a photo on Google+.
+     */
+    public static String photoLink(long photoId) {
+        return get(Config.API_PHOTO_LINK).expand(photoId);
+    }
+
+    /**
+     * @return the API URL used to retrieve metadata about a single photo.
+     */
+    public static String photo(long photoId) {
+        return get(Config.PHOTO).expand(photoId);
+    }
+
+    /**
+     * @return the API URL used to retrieve metadata about a single photo.
+     */
+    public static String photo(String photoId) {
+        return get(Config.PHOTO).expand(photoId);
+    }
+
+    /**
+     * @return the API URL used to retrieve an upload URL for a photo.
+     */
+    public static String photoUpload() {
+        return get(Config.PHOTO_UPLOAD).expand();
+    }
+
+    /**
+     * @return the API URL used to vote for a photo.
+     */
+    public static String photoVote() {
+        return get(Config.PHOTO_VOTE).expand();
+    }
+
+    /**
+     * @return the API URL used to retrieve {@code count} themes starting at {@code startIndex}.
+     */
+    public static String themeList(long startIndex, long count) {
+        return get(Config.THEME_LIST).expand(startIndex, count);
+    }
+
+    /**
+     * @return the API URL used to retrieve the photos for a theme.
+     */
+    public static String themePhotoList(long themeId) {
+        return get(Config.THEME_PHOTO_LIST).expand(themeId);
+    }
+
+    /**
+     * @return the API URL used to retrieve the photos the friends of a user have submitted to a
+     *         theme.
+     */
+    public static String friendsPhotoList(String userId, long themeId) {
+        return get(Config.FRIENDS_PHOTO_LIST).expand(userId, themeId);
+    }
+
+    /**
+     * @return the API URL used to retrieve the photos a user has uploaded for a theme.
+     */
+    public static String userThemePhotoList(String userId, long themeId) {
+        return get(Config.USER_THEME_PHOTO_LIST).expand(userId, themeId);
+    }
+
+    /**
+     * @return the API URL used to retrieve the photos a user has uploaded to PhotoHunt.
+     */
+    public static String userPhotoList(String userId) {
+        return get(Config.USER_PHOTO_LIST).expand(userId);
+    }
+
+    /**
+     * @return the API URL used to fetch several thumbnails in one {@code multipart/mixed}
+     *         response.
+     */
+    public static String thumbnailBatch() {
+        return get(Config.THUMBNAIL_BATCH).expand();
+    }
+
+    /**
+     * @return the API URL used to connect to the PhotoHunt service.
+     */
+    public static String connect() {
+        return get(Config.API_CONNECT).expand();
+    }
+
+    /**
+     * @return the API URL used to disconnect from the PhotoHunt service.
+     */
+    public static String disconnect() {
+        return get(Config.API_DISCONNECT).expand();
+    }
+
+    /**
+     * @return true if the API host is configured, so that the endpoints can be used.
+     */
+    public static boolean isConfigured() {
+        return Config.API_HOST != null;
+    }
+
+    /**
+     * @return true if {@code url} belongs to the PhotoHunt API rather than, for example, being
+     *         an image.
+     */
+    public static boolean isApiUrl(String url) {
+        return Config.API_ROOT != null && url.startsWith(Config.API_ROOT);
+    }
+
+    /**
+     * @return how many seconds a cached response for {@code url} stays fresh,
+     *         {@link #MAX_AGE_NEVER} if it must not be cached, or {@link #MAX_AGE_SERVER} if the
+     *         URL is not an API endpoint.
+     */
+    public static int getMaxAge(String url) {
+        if (!isApiUrl(url)) {
+            return MAX_AGE_SERVER;
+        }
+
+        // Endpoints which share a path are told apart by their first parameter, so the template
+        // with the longest matching prefix is the one which built the URL.
+        UrlTemplate match = null;
+        for (UrlTemplate template : Config.TEMPLATES) {
+            if (url.startsWith(template.getPrefix())
+                    && (match == null || template.getPrefix().length()
+                            > match.getPrefix().length())) {
+                match = template;
             }
         }
+
+        return match != null ? match.getMaxAge() : MAX_AGE_NEVER;
+    }
+
+    private static UrlTemplate get(UrlTemplate template) {
+        if (template == null) {
+            throw new IllegalStateException("api_host is not configured in config.properties");
+        }
+
+        return template;
+    }
+
+    /**
+     * Holds the configuration, which the class loader loads, exactly once, on first use.
+     */
+    private static class Config {
+
+        /** The protocol and hostname used to access the PhotoHunt service. */
+        static final String API_HOST = load();
+
+        static final String API_ROOT = API_HOST != null ? API_HOST + "/api/" : null;
+
+        static final UrlTemplate API_PHOTO_LINK = create("/image?id=%s", MAX_AGE_SERVER);
+
+        static final UrlTemplate API_CONNECT = create("/connect", MAX_AGE_NEVER);
+
+        static final UrlTemplate API_DISCONNECT = create("/disconnect", MAX_AGE_NEVER);
+
+        static final UrlTemplate THEME_LIST =
+                create("/themes?startIndex=%s&count=%s", MAX_AGE_THEMES);
+
+        static final UrlTemplate PHOTO_UPLOAD = create("/images", MAX_AGE_NEVER);
+
+        static final UrlTemplate PHOTO = create("/photos?photoId=%s", MAX_AGE_PHOTOS);
+
+        static final UrlTemplate THEME_PHOTO_LIST = create("/photos?themeId=%s", MAX_AGE_PHOTOS);
+
+        static final UrlTemplate USER_PHOTO_LIST = create("/photos?userId=%s", MAX_AGE_PHOTOS);
+
+        static final UrlTemplate USER_THEME_PHOTO_LIST =
+                create("/photos?userId=%s&themeId=%s", MAX_AGE_PHOTOS);
+
+        static final UrlTemplate FRIENDS_PHOTO_LIST =
+                create("/photos?userId=%s&themeId=%s&friends=true", MAX_AGE_PHOTOS);
+
+        static final UrlTemplate PHOTO_VOTE = create("/votes", MAX_AGE_NEVER);
+
+        static final UrlTemplate THUMBNAIL_BATCH = create("/thumbnails", MAX_AGE_NEVER);
+
+        /** Every template, or none if the API host is not configured. */
+        static final UrlTemplate[] TEMPLATES = API_HOST != null ? new UrlTemplate[] {
+                API_PHOTO_LINK, API_CONNECT, API_DISCONNECT, THEME_LIST, PHOTO_UPLOAD, PHOTO,
+                THEME_PHOTO_LIST, USER_PHOTO_LIST, USER_THEME_PHOTO_LIST, FRIENDS_PHOTO_LIST,
+                PHOTO_VOTE, THUMBNAIL_BATCH } : new UrlTemplate[0];
+
+        private static String load() {
+            Properties config = new Properties();
+
+            try {
+                config.load(Endpoints.class.getClassLoader()
+                        .getResourceAsStream("config.properties"));
+
+                return config.getProperty("api_host");
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to load configuration properties file", e);
+                return null;
+            }
+        }
+
+        /**
+         * @param path the path of the endpoint below the API root, with a {@code %s} for each
+         *        parameter.
+         * @param maxAge see {@link Endpoints#getMaxAge(String)}.
+         */
+        private static UrlTemplate create(String path, int maxAge) {
+            return API_HOST != null ? new UrlTemplate(API_HOST + "/api" + path, maxAge) : null;
+        }
+    }
+
+    /**
+     * A URL split around its {@code %s} placeholders.
+     */
+    private static class UrlTemplate {
+
+        private static final String PLACEHOLDER = "%s";
+
+        /** Room reserved for each parameter, enough for a long without growing the buffer. */
+        private static final int PARAMETER_CAPACITY = 20;
+
+        /** The literal text before, between and after the placeholders. */
+        private final String[] mParts;
+
+        private final int mCapacity;
+
+        private final int mMaxAge;
+
+        UrlTemplate(String template, int maxAge) {
+            String[] parts = template.split(PLACEHOLDER, -1);
+            int capacity = template.length();
+            capacity += (parts.length - 1) * (PARAMETER_CAPACITY - PLACEHOLDER.length());
+
+            mParts = parts;
+            mCapacity = capacity;
+            mMaxAge = maxAge;
+        }
+
+        /**
+         * @return the literal text before the first placeholder, which every URL built from this
+         *         template starts with.
+         */
+        String getPrefix() {
+            return mParts[0];
+        }
+
+        int getMaxAge() {
+            return mMaxAge;
+        }
+
+        String expand() {
+            return mParts[0];
+        }
+
+        String expand(long first) {
+            return start().append(first).append(mParts[1]).toString();
+        }
+
+        String expand(String first) {
+            return start().append(first).append(mParts[1]).toString();
+        }
+
+        String expand(long first, long second) {
+            return start().append(first).append(mParts[1]).append(second).append(mParts[2])
+                    .toString();
+        }
+
+        String expand(String first, long second) {
+            return start().append(first).append(mParts[1]).append(second).append(mParts[2])
+                    .toString();
+        }
+
+        private StringBuilder start() {
+            return new StringBuilder(mCapacity).append(mParts[0]);
+        }
     }
 }
@@ -21,13 +21,19 @@ import com.google.android.gms.plus.PlusShare;
 import com.google.plus.samples.photohunt.model.Photo;
 import com.google.plus.samples.photohunt.model.Theme;
 
+import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Environment;
 import android.provider.MediaStore;
+import android.util.Log;
 
 import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -47,7 +53,12 @@ public class Intents {
     /** {@link android.content.Intent} extra used to pass a PhotoHunt Photo id. */
     public static final String PHOTO_ID_EXTRA = "photoId";
 
-    private static final String TMP_PHOTO_FILENAME = "photohunt.jpg";
+    private static final String TMP_PHOTO_PREFIX = "photohunt-";
+
+    /** Intent.EXTRA_ALLOW_MULTIPLE, which is only defined from API 18. */
+    private static final String EXTRA_ALLOW_MULTIPLE = "android.intent.extra.ALLOW_MULTIPLE";
+
+    private static final String TAG = Intents.class.getSimpleName();
 
     /**
      * Return an Intent to invoke an Google+ share dialog to create an interactive post promoting 
@@ -131,23 +142,81 @@ public class Intents {
     /**
      * Create an {@link android.content.Intent} to capture an image from the device camera.
      * 
+     * @param output the URI to write the image to, from {@link #createPhotoImageUri()}.
      * @return the camera intent.
      */
-    public static Intent getCameraIntent() {
+    public static Intent getCameraIntent(Uri output) {
         Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE, null);
-        intent.putExtra(MediaStore.EXTRA_OUTPUT, getPhotoImageUri());
+        intent.putExtra(MediaStore.EXTRA_OUTPUT, output);
         return intent;
     }
 
     /**
-     * Get the URI of the temporary file used to capture a PhotoHunt image.
+     * Create an {@link android.content.Intent} to pick one or more images from the gallery.
+     * Releases which do not support multiple selection let the user pick a single image.
+     *
+     * @return the gallery intent.
+     */
+    public static Intent getGalleryIntent() {
+        Intent intent = new Intent();
+        intent.setType("image/*");
+        intent.setAction(Intent.ACTION_GET_CONTENT);
+        intent.putExtra(EXTRA_ALLOW_MULTIPLE, true);
+        return Intent.createChooser(intent, "Select Photo");
+    }
+
+    /**
+     * Get the images picked in response to {@link #getGalleryIntent()}.
+     *
+     * @param result the result {@link android.content.Intent}.
+     * @return the URIs of the picked images, which may be empty.
+     */
+    public static List<Uri> getGalleryUris(Intent result) {
+        List<Uri> uris = new ArrayList<Uri>();
+
+        if (result != null) {
+            if (android.os.Build.VERSION.SDK_INT >= 16) {
+                ClipDataReader.addUris(result, uris);
+            }
+
+            if (uris.isEmpty() && result.getData() != null) {
+                uris.add(result.getData());
+            }
+        }
+
+        return uris;
+    }
+
+    /**
+     * Create the URI of a new file to capture a PhotoHunt image to.  Each capture gets its own
+     * file so that one still queued for upload is not overwritten by the next; see
+     * {@link #deleteCapturedPhoto(Uri)} for its removal.
      * 
-     * @return the URI of the temporary file.
+     * @return the URI of the new file.
      */
-    public static Uri getPhotoImageUri() {
-        File f = new File(Environment.getExternalStorageDirectory(), TMP_PHOTO_FILENAME);
+    public static Uri createPhotoImageUri() {
+        File f = new File(Environment.getExternalStorageDirectory(),
+                TMP_PHOTO_PREFIX + System.currentTimeMillis() + ".jpg");
         return Uri.fromFile(f);
     }
+
+    /**
+     * Delete the file behind {@code uri} if it was created by {@link #createPhotoImageUri()}.
+     * Called once the capture is no longer needed: when the camera is cancelled, or when its
+     * upload leaves the queue, whether sent or failed.  Other URIs are left alone.
+     */
+    public static void deleteCapturedPhoto(Uri uri) {
+        if (uri == null || !"file".equals(uri.getScheme()) || uri.getPath() == null) {
+            return;
+        }
+
+        File f = new File(uri.getPath());
+        if (f.getName().startsWith(TMP_PHOTO_PREFIX)
+                && Environment.getExternalStorageDirectory().equals(f.getParentFile())
+                && f.exists() && !f.delete()) {
+            Log.w(TAG, "Unable to delete captured photo " + f);
+        }
+    }
     
     /**
      * Create an {@link android.content.Intent} to display a Google+ user's profile in the Google+
@@ -160,4 +229,29 @@ public class Intents {
         return new Intent(Intent.ACTION_VIEW, Uri.parse(profileUrl));
     }
 
+    /**
+     * Reads multiple selections, which are returned as ClipData.  Intent.getClipData() is only
+     * defined from API 16, so it is called reflectively.
+     */
+    @SuppressLint("NewApi")
+    private static class ClipDataReader {
+
+        static void addUris(Intent result, List<Uri> uris) {
+            try {
+                Method getClipData = Intent.class.getMethod("getClipData");
+                ClipData clip = (ClipData) getClipData.invoke(result);
+
+                if (clip != null) {
+                    for (int i = 0; i < clip.getItemCount(); i++) {
+                        Uri uri = clip.getItemAt(i).getUri();
+                        if (uri != null) {
+                            uris.add(uri);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to read multiple selection", e);
+            }
+        }
+    }
 }
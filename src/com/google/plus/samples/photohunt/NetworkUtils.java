@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Static utilities for inspecting the active network connection.
+ */
+public class NetworkUtils {
+
+    /**
+     * Determine whether data sent over the active network is likely to cost the user money.
+     * Wi-Fi, Ethernet and WiMAX are treated as unmetered; any other connection type, or no
+     * connection at all, is treated as metered.
+     *
+     * @param context the {@link Context} used to access the {@link ConnectivityManager}.
+     * @return true if the active network should be treated as metered.
+     */
+    public static boolean isActiveNetworkMetered(Context context) {
+        NetworkInfo info = getActiveNetworkInfo(context);
+
+        if (info == null || !info.isConnected()) {
+            return true;
+        }
+
+        switch (info.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+            case ConnectivityManager.TYPE_ETHERNET:
+            case ConnectivityManager.TYPE_WIMAX:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @param context the {@link Context} used to access the {@link ConnectivityManager}.
+     * @return the active network, or null if there is none.
+     */
+    public static NetworkInfo getActiveNetworkInfo(Context context) {
+        ConnectivityManager connManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return connManager.getActiveNetworkInfo();
+    }
+}
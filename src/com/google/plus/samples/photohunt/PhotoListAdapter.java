@@ -30,6 +30,7 @@ import android.widget.TextView;
 
 import com.google.android.imageloader.ImageLoader;
 import com.google.plus.samples.photohunt.app.PhotoHuntApp;
+import com.google.plus.samples.photohunt.app.StartupTrace;
 import com.google.plus.samples.photohunt.client.ClickCallback;
 import com.google.plus.samples.photohunt.model.Photo;
 import com.google.plus.samples.photohunt.model.Theme;
@@ -172,7 +173,10 @@ public class PhotoListAdapter extends PinnedHeaderArrayAdapter<Photo> {
 
         // Start the ImageLoader retrieving the photo
         if (!TextUtils.isEmpty(metadata.thumbnailUrl)) {
-            mImageLoader.bind(this, holder.itemImageView, metadata.thumbnailUrl);
+            if (mImageLoader.bind(this, holder.itemImageView, metadata.thumbnailUrl)
+                    == ImageLoader.BindResult.OK) {
+                StartupTrace.mark("first-photo");
+            }
         }
 
         // Display the delete button if the active user matches the author of the photo
@@ -24,12 +24,11 @@ import java.util.ArrayList;
 import java.util.List;
 
 import android.content.Intent;
-import android.database.Cursor;
+import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Bundle;
-import android.provider.MediaStore.Images.Media;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
@@ -43,11 +42,17 @@ import com.actionbarsherlock.view.Window;
 import com.google.analytics.tracking.android.EasyTracker;
 import com.google.analytics.tracking.android.Tracker;
 import com.google.gson.reflect.TypeToken;
+import com.google.plus.samples.photohunt.app.PhotoHuntApp;
+import com.google.plus.samples.photohunt.app.StartupTrace;
+import com.google.plus.samples.photohunt.auth.AuthManager;
+import com.google.plus.samples.photohunt.cache.ApiResponseCache;
+import com.google.plus.samples.photohunt.cache.ThumbnailBatchFetcher;
 import com.google.plus.samples.photohunt.model.Photo;
 import com.google.plus.samples.photohunt.model.Theme;
 import com.google.plus.samples.photohunt.model.User;
 import com.google.plus.samples.photohunt.tasks.FetchJsonTaskLoader;
-import com.google.plus.samples.photohunt.tasks.SendPhotoTask;
+import com.google.plus.samples.photohunt.upload.UploadManager;
+import com.google.plus.samples.photohunt.upload.UploadStatus;
 import com.google.plus.samples.photohunt.widget.PinnedHeaderListView;
 
 /**
@@ -67,12 +72,27 @@ public class ThemeViewActivity extends BaseActivity {
     /** Activity result code for image gallery select. */
     private static final int REQUEST_CODE_IMAGE_SELECT = 6001;
 
+    /** Saved instance state key for {@link #mCaptureUri}. */
+    private static final String STATE_CAPTURE_URI = "captureUri";
+
+    /** Saved instance state key for {@link #mUploadThemeId}. */
+    private static final String STATE_UPLOAD_THEME_ID = "uploadThemeId";
+
+    /** Preference holding the ID of the active theme when the theme list was last loaded. */
+    private static final String PREF_ACTIVE_THEME_ID = "activeThemeId";
+
     /** Id of the currently displayed theme. */
     private Long mThemeId;
 
     /** Currently displayed theme. */
     private Theme mTheme;
 
+    /**
+     * Active theme when the app last ran, whose photos are loaded while the theme list is
+     * fetched.  Null if there is none.
+     */
+    private Long mCachedThemeId;
+
     /** List of all themes. */
     private List<Theme> mThemes;
 
@@ -101,8 +121,46 @@ public class ThemeViewActivity extends BaseActivity {
     private PhotoListAdapter mPhotoListAdapter;
     private ListView mPhotoListView;
 
-    /** AsyncTask used to upload photos to the PhotoHunt service. */
-    private SendPhotoTask mSendTask = null;
+    /** Background queue used to upload photos to the PhotoHunt service. */
+    private UploadManager mUploadManager;
+
+    /** File the camera is writing the current capture to, or null if none is in progress. */
+    private Uri mCaptureUri;
+
+    /**
+     * Theme the photos returned by the camera or gallery are uploaded to, kept with the capture
+     * since {@link #mTheme} is not restored with the activity.  Null if there is none.
+     */
+    private Long mUploadThemeId;
+
+    /**
+     * Photos uploaded from this device which are shown before the photo lists fetched from the
+     * server include them.
+     */
+    private final List<Photo> mUploadedPhotos = new ArrayList<Photo>();
+
+    /** Reports the outcome of uploads, including those started before this activity. */
+    private final UploadManager.UploadListener mUploadListener =
+            new UploadManager.UploadListener() {
+        @Override
+        public void onUploadChanged(UploadStatus status) {
+            if (status.state == UploadStatus.STATE_COMPLETE) {
+                Toast.makeText(ThemeViewActivity.this, getString(R.string.upload_success),
+                        Toast.LENGTH_LONG).show();
+
+                if (status.photo != null) {
+                    addUploadedPhoto(status.photo);
+                }
+                update();
+            } else if (status.state == UploadStatus.STATE_FAILED) {
+                Toast.makeText(ThemeViewActivity.this, getString(R.string.upload_failure),
+                        Toast.LENGTH_LONG).show();
+                update();
+            } else {
+                setSupportProgressBarIndeterminateVisibility(mUploadManager.isUploading());
+            }
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -113,6 +171,16 @@ public class ThemeViewActivity extends BaseActivity {
         setSupportProgressBarIndeterminateVisibility(false);
 
         mLoaderMgr = getSupportLoaderManager();
+        mUploadManager = ((PhotoHuntApp) getApplication()).getUploadManager();
+
+        // The camera may run long enough for this activity to be destroyed.
+        if (savedInstanceState != null) {
+            mCaptureUri = savedInstanceState.getParcelable(STATE_CAPTURE_URI);
+
+            if (savedInstanceState.containsKey(STATE_UPLOAD_THEME_ID)) {
+                mUploadThemeId = savedInstanceState.getLong(STATE_UPLOAD_THEME_ID);
+            }
+        }
 
         mThemes = new ArrayList<Theme>();
         mMyPhotos = new ArrayList<Photo>();
@@ -126,6 +194,9 @@ public class ThemeViewActivity extends BaseActivity {
 
         mPhotoListView = (PinnedHeaderListView) findViewById(R.id.theme_images_view);
         mPhotoListView.setAdapter(mPhotoListAdapter);
+        PhotoHuntApp app = (PhotoHuntApp) getApplication();
+        mPhotoListView.setOnScrollListener(new ThumbnailPrefetcher(this, mImageLoader,
+                app.getEncodedImageCache(), app.getThumbnailBatchFetcher()));
 
         // Set the desired theme to display if it was set in the calling Intent.
         // For example, if we deep linked to a theme.
@@ -133,6 +204,11 @@ public class ThemeViewActivity extends BaseActivity {
             mThemeId = (Long) getIntent().getExtras().get(Intents.THEME_ID_EXTRA);
         }
 
+        SharedPreferences prefs = getPreferences(MODE_PRIVATE);
+        if (prefs.contains(PREF_ACTIVE_THEME_ID)) {
+            mCachedThemeId = prefs.getLong(PREF_ACTIVE_THEME_ID, 0);
+        }
+
         Bundle bundle = new Bundle();
 
         // Initialise the Loaders
@@ -143,12 +219,28 @@ public class ThemeViewActivity extends BaseActivity {
         mFriendPhotosLoader = (FetchJsonTaskLoader<List<Photo>>) mLoaderMgr.initLoader(
                 FRIEND_PHOTOS_ID, bundle, new PhotoCallbacks(FRIEND_PHOTOS_ID, mFriendPhotos));
 
-        bundle.putString("url", String.format(Endpoints.THEME_LIST, 0, 50));
+        StartupTrace.begin("themes");
+        bundle.putString("url", Endpoints.themeList(0, 50));
         mThemeListLoader = (FetchJsonTaskLoader<List<Theme>>) mLoaderMgr.initLoader(THEME_LIST_ID,
                 bundle, new ThemeListCallbacks());
 
+        // Load the photos of the deep linked or last active theme alongside the theme list and
+        // sign-in, rather than after them.  The user's own photos follow as soon as a session
+        // exists; see setAuthenticatedProfile().
+        configurePhotoLoaders();
+
         update();
     }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_CAPTURE_URI, mCaptureUri);
+
+        if (mUploadThemeId != null) {
+            outState.putLong(STATE_UPLOAD_THEME_ID, mUploadThemeId);
+        }
+    }
     
     @Override
     public void setAuthenticatedProfile(User profile) {
@@ -166,6 +258,16 @@ public class ThemeViewActivity extends BaseActivity {
     }
 
     private void trackAnalytics() {
+        // Starting the tracker opens its database, so it waits until the first frame is drawn.
+        getStartupScheduler().runAfterFirstFrame(new Runnable() {
+            @Override
+            public void run() {
+                sendAnalytics();
+            }
+        });
+    }
+
+    private void sendAnalytics() {
         EasyTracker.getInstance().setContext(this);
         Tracker tracker = EasyTracker.getInstance().getTracker();
 
@@ -180,31 +282,53 @@ public class ThemeViewActivity extends BaseActivity {
         }
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+        mUploadManager.addListener(mUploadListener);
+
+        // Show the photos uploaded while this activity was stopped, for example while the
+        // camera was in front.
+        boolean uploaded = false;
+        for (UploadStatus status : mUploadManager.takeUnconsumedCompletions()) {
+            if (status.photo != null) {
+                addUploadedPhoto(status.photo);
+                uploaded = true;
+            }
+        }
+
+        if (uploaded) {
+            update();
+        }
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        mUploadManager.removeListener(mUploadListener);
+    }
+
     @Override
     public void onActivityResult(int requestCode, int responseCode, Intent intent) {
         super.onActivityResult(requestCode, responseCode, intent);
 
         switch (requestCode) {
             case REQUEST_CODE_IMAGE_CAPTURE:
-                if (responseCode == RESULT_OK) {
-                    sendImage(Intents.getPhotoImageUri().getPath(), mTheme.id);
+                if (responseCode == RESULT_OK && mCaptureUri != null && mUploadThemeId != null) {
+                    sendImage(mCaptureUri.toString(), mUploadThemeId);
+                } else {
+                    Intents.deleteCapturedPhoto(mCaptureUri);
                 }
+                mCaptureUri = null;
                 break;
             case REQUEST_CODE_IMAGE_SELECT:
-                if (responseCode == RESULT_OK && intent != null && intent.getData() != null) {
-                    String imageUriString = intent.getDataString();
-                    Uri imageUri = intent.getData();
-
-                    if ("content".equals(imageUri.getScheme())) {
-                        Cursor cursor = getContentResolver()
-                                .query(imageUri, new String[] { Media.DATA }, null, null, null);
-                        int column_index = cursor.getColumnIndexOrThrow(Media.DATA);
-                        cursor.moveToFirst();
-
-                        imageUriString = cursor.getString(column_index);
+                if (responseCode == RESULT_OK && mUploadThemeId != null) {
+                    // Queue every picked image; the upload service stages the next one while
+                    // the previous one is being sent.  The URIs are queued as they are and only
+                    // read by the upload worker threads.
+                    for (Uri imageUri : Intents.getGalleryUris(intent)) {
+                        sendImage(imageUri.toString(), mUploadThemeId);
                     }
-
-                    sendImage(imageUriString, mTheme.id);
                 }
                 break;
         }
@@ -218,11 +342,8 @@ public class ThemeViewActivity extends BaseActivity {
                 return true;
 
             case R.id.menu_item_gallery:
-                Intent intent = new Intent();
-                intent.setType("image/*");
-                intent.setAction(Intent.ACTION_GET_CONTENT);
-                startActivityForResult(Intent.createChooser(intent, "Select Photo"),
-                        REQUEST_CODE_IMAGE_SELECT);
+                mUploadThemeId = mTheme != null ? mTheme.id : null;
+                startActivityForResult(Intents.getGalleryIntent(), REQUEST_CODE_IMAGE_SELECT);
                 return true;
 
             case android.R.id.home:
@@ -238,6 +359,7 @@ public class ThemeViewActivity extends BaseActivity {
                 return true;
 
             case R.id.menu_item_refresh:
+                ApiResponseCache.invalidateApi();
                 mThemeListLoader.forceLoad();
                 mPhotoListAdapter.setDirty(THEME_PHOTOS_ID, true);
                 mPhotoListAdapter.setDirty(FRIEND_PHOTOS_ID, true);
@@ -273,6 +395,9 @@ public class ThemeViewActivity extends BaseActivity {
                         .setIcon(android.R.drawable.ic_menu_gallery)
                         .setShowAsAction(
                                 MenuItem.SHOW_AS_ACTION_ALWAYS | MenuItem.SHOW_AS_ACTION_WITH_TEXT);
+
+                // The user can now upload a photo, so have an upload URL ready for it.
+                mUploadManager.prefetchUploadUrls();
             }
 
             menu.add(0, R.id.menu_item_profile, 0, getString(R.string.profile_menu_title))
@@ -306,41 +431,17 @@ public class ThemeViewActivity extends BaseActivity {
             Toast.makeText(this, getString(R.string.toast_connect_wifi), Toast.LENGTH_LONG).show();
         }
 
-        Intent cameraIntent = Intents.getCameraIntent();
+        mUploadThemeId = mTheme != null ? mTheme.id : null;
+        mCaptureUri = Intents.createPhotoImageUri();
+        Intent cameraIntent = Intents.getCameraIntent(mCaptureUri);
         startActivityForResult(cameraIntent, REQUEST_CODE_IMAGE_CAPTURE);
     }
 
     private void sendImage(String imageUri, Long id) {
-        mSendTask = new SendPhotoTask(id) {
-            @Override
-            protected void onSuccess(Photo result) {
-                Toast.makeText(ThemeViewActivity.this, getString(R.string.upload_success),
-                        Toast.LENGTH_LONG).show();
-                mSendTask = null;
-                update();
-            }
-
-            @Override
-            protected void onError() {
-                Toast.makeText(ThemeViewActivity.this, getString(R.string.upload_failure),
-                        Toast.LENGTH_LONG).show();
-                mSendTask = null;
-                update();
-            }
-        };
-
-        mSendTask.execute(imageUri);
+        mUploadManager.enqueue(id, imageUri);
         update();
     }
 
-    @Override
-    protected void resetTaskState() {
-        if (mSendTask != null) {
-            mSendTask.cancel(true);
-            mSendTask = null;
-        }
-    }
-
     @Override
     public void update() {
         super.update();
@@ -368,11 +469,64 @@ public class ThemeViewActivity extends BaseActivity {
         }
 
         // Update the progress bar based on whether we are uploading a photo.
-        setSupportProgressBarIndeterminateVisibility(mSendTask != null);
+        setSupportProgressBarIndeterminateVisibility(mUploadManager.isUploading());
 
         mPhotoListAdapter.notifyDataSetChanged();
     }
 
+    /**
+     * Show a photo uploaded from this device in My Photos and All Photos without refetching
+     * either list.  Its thumbnail was cached from the local copy by the uploader.
+     */
+    private void addUploadedPhoto(Photo photo) {
+        if (photo.id == null) {
+            return;
+        }
+
+        // Fill in the owner if the upload response left it out, so the photo can be deleted.
+        if (photo.ownerUserId == null && mPhotoUser != null) {
+            photo.ownerUserId = mPhotoUser.id;
+            photo.ownerDisplayName = mPhotoUser.googleDisplayName;
+            photo.ownerProfilePhoto = mPhotoUser.googlePublicProfilePhotoUrl;
+        }
+
+        removePhoto(mUploadedPhotos, photo.id);
+        mUploadedPhotos.add(photo);
+
+        mergeUploadedPhotos(mMyPhotos);
+        mergeUploadedPhotos(mThemePhotos);
+        mPhotoListAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * Add the uploaded photos of the selected theme missing from {@code list} to its top.
+     */
+    private void mergeUploadedPhotos(List<Photo> list) {
+        for (Photo photo : mUploadedPhotos) {
+            if (mTheme != null && mTheme.id.equals(photo.themeId)
+                    && indexOfPhoto(list, photo.id) < 0) {
+                list.add(0, photo);
+            }
+        }
+    }
+
+    private static int indexOfPhoto(List<Photo> list, Long id) {
+        for (int i = 0; id != null && i < list.size(); i++) {
+            if (id.equals(list.get(i).id)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static void removePhoto(List<Photo> list, Long id) {
+        int index = indexOfPhoto(list, id);
+        if (index >= 0) {
+            list.remove(index);
+        }
+    }
+
     public void setSelectedTheme(Theme theme) {
         trackAnalytics();
         mTheme = theme;
@@ -404,6 +558,21 @@ public class ThemeViewActivity extends BaseActivity {
         return mThemes;
     }
 
+    /**
+     * @return the ID of the theme whose photos to load: the selected theme once the theme list
+     *         has loaded, until then the deep linked or last active theme.
+     */
+    private Long getPhotoThemeId() {
+        if (mTheme != null) {
+            return mTheme.id;
+        } else if (mThemes != null && !mThemes.isEmpty()) {
+            // The theme list has loaded without a theme being selected.
+            return null;
+        }
+
+        return mThemeId != null ? mThemeId : mCachedThemeId;
+    }
+
     /**
      * Ensure that the correct photo loaders are running based on whether we
      * have a theme selected and whether the user is authenticated.
@@ -412,16 +581,19 @@ public class ThemeViewActivity extends BaseActivity {
         String themePhotosUrl = null;
         String myPhotosUrl = null;
         String friendPhotosUrl = null;
+        Long themeId = getPhotoThemeId();
 
-        if (mTheme != null) {
-            themePhotosUrl = String.format(Endpoints.THEME_PHOTO_LIST, mTheme.id);
+        if (themeId != null) {
+            themePhotosUrl = Endpoints.themePhotoList(themeId);
+            StartupTrace.begin("theme-photos");
 
-            if (!isAuthenticating() && mPhotoUser != null) {
-                myPhotosUrl = String.format(Endpoints.USER_THEME_PHOTO_LIST, Endpoints.ME_ID,
-                        mTheme.id);
+            // A restored session can load these while Google sign-in is still connecting.
+            if (mPhotoUser != null) {
+                myPhotosUrl = Endpoints.userThemePhotoList(Endpoints.ME_ID, themeId);
 
-                friendPhotosUrl = String.format(Endpoints.FRIENDS_PHOTO_LIST, Endpoints.ME_ID,
-                        mTheme.id);
+                friendPhotosUrl = Endpoints.friendsPhotoList(Endpoints.ME_ID, themeId);
+                StartupTrace.begin("my-photos");
+                StartupTrace.begin("friend-photos");
             }
         }
 
@@ -447,16 +619,23 @@ public class ThemeViewActivity extends BaseActivity {
         @Override
         public void onLoadFinished(Loader<List<Theme>> loader, List<Theme> themes) {
             mThemes = themes;
+            StartupTrace.end("themes");
 
             Theme active = getActiveTheme(mThemes);
             if (active != null) {
+                if (!active.id.equals(mCachedThemeId)) {
+                    mCachedThemeId = active.id;
+                    getPreferences(MODE_PRIVATE).edit()
+                            .putLong(PREF_ACTIVE_THEME_ID, active.id).commit();
+                }
+
                 if (mThemeId == null) {
                     // If mThemeId has not been set we default it to the currently active them.
                     // Otherwise we assume it was selected by the user explicitly.
                     setSelectedTheme(active);
                 } else if (mTheme == null) {
                     for (Theme theme : mThemes) {
-                        if (mThemeId == theme.id) {
+                        if (mThemeId.equals(theme.id)) {
                             setSelectedTheme(theme);
                             break;
                         }
@@ -466,6 +645,7 @@ public class ThemeViewActivity extends BaseActivity {
                 mPhotoListAdapter.setActiveTheme(active);
             } else {
                 mThemeId = null;
+                mCachedThemeId = null;
                 setSelectedTheme(null);
                 mPhotoListAdapter.setActiveTheme(null);
             }
@@ -512,8 +692,30 @@ public class ThemeViewActivity extends BaseActivity {
 
             if (photos != null) {
                 mList.addAll(photos);
+                StartupTrace.end(getPhase(mId));
+
+                if (mId == MY_PHOTOS_ID) {
+                    AuthManager.getInstance().reportAuthenticatedContent();
+
+                    // Uploads the server lists as ours no longer need to be shown locally.
+                    for (Photo photo : photos) {
+                        removePhoto(mUploadedPhotos, photo.id);
+                    }
+                }
+            }
+
+            if (mId != FRIEND_PHOTOS_ID) {
+                mergeUploadedPhotos(mList);
             }
 
+            // Start fetching the thumbnails which fill the screen before the rows are bound, so
+            // that on a slow network the rows wait for one batch rather than a request each.
+            List<String> thumbnailUrls = new ArrayList<String>();
+            for (int i = 0; i < mList.size() && i < ThumbnailBatchFetcher.MAX_BATCH_SIZE; i++) {
+                thumbnailUrls.add(mList.get(i).thumbnailUrl);
+            }
+            ((PhotoHuntApp) getApplication()).getThumbnailBatchFetcher().fetch(thumbnailUrls);
+
             mPhotoListAdapter.setDirty(mId, false);
             mPhotoListAdapter.notifyDataSetChanged();
         }
@@ -525,6 +727,20 @@ public class ThemeViewActivity extends BaseActivity {
 
     }
 
+    /**
+     * @return the name of the startup phase which loads the photo list partition {@code id}.
+     */
+    private static String getPhase(int id) {
+        switch (id) {
+            case MY_PHOTOS_ID:
+                return "my-photos";
+            case FRIEND_PHOTOS_ID:
+                return "friend-photos";
+            default:
+                return "theme-photos";
+        }
+    }
+
     /** Restarts the FetchJsonTaskLoader if the URL being fetched has changed. */
     private static <T> FetchJsonTaskLoader<T> restartLoader(LoaderManager loaderMgr, int id,
             FetchJsonTaskLoader<T> loader, LoaderManager.LoaderCallbacks<T> callbacks, String url) {
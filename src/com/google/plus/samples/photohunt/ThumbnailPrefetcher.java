@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.widget.AbsListView;
+import android.widget.Adapter;
+
+import com.google.android.imageloader.ImageLoader;
+import com.google.plus.samples.photohunt.cache.EncodedImageCache;
+import com.google.plus.samples.photohunt.cache.ThumbnailBatchFetcher;
+import com.google.plus.samples.photohunt.model.Photo;
+import com.google.plus.samples.photohunt.widget.PinnedHeaderListView;
+
+/**
+ * Warms the image caches with the thumbnails of the rows about to scroll into view.
+ *
+ * The number of rows fetched ahead grows with the scroll velocity reported by
+ * {@link PinnedHeaderListView}.  The nearest rows are decoded into the bitmap cache; rows further
+ * ahead are only fetched into the {@link EncodedImageCache}.  Speculative fetches are limited by
+ * a byte budget which is much smaller on metered networks, and a prefetched thumbnail which has
+ * not scrolled into view within {@link #PREFETCH_TTL_MS} counts as wasted and releases its share
+ * of the budget.  On high latency networks the thumbnails are fetched in batches by the
+ * {@link ThumbnailBatchFetcher}.
+ */
+public class ThumbnailPrefetcher implements AbsListView.OnScrollListener {
+
+    private static final String TAG = ThumbnailPrefetcher.class.getSimpleName();
+
+    /** Rows beyond the visible range which are always prefetched. */
+    private static final int MIN_LOOKAHEAD_ROWS = 3;
+
+    /** Upper bound on the rows prefetched however fast the list is flung. */
+    private static final int MAX_LOOKAHEAD_ROWS = 15;
+
+    /** How far ahead, in seconds of scrolling at the current velocity, rows are prefetched. */
+    private static final float LOOKAHEAD_SECONDS = 1.5f;
+
+    /** Rows immediately ahead of the visible range which are decoded rather than just fetched. */
+    private static final int DECODE_AHEAD_ROWS = 2;
+
+    /** Speculative bytes outstanding when on an unmetered network. */
+    private static final long UNMETERED_BUDGET = 4 * 1024 * 1024; // 4MB
+
+    /** Speculative bytes outstanding when on a metered network. */
+    private static final long METERED_BUDGET = 512 * 1024; // 512KB
+
+    /** Estimated size of a thumbnail before any have been cached. */
+    private static final long DEFAULT_THUMBNAIL_SIZE = 32 * 1024; // 32KB
+
+    /** Time after which a prefetched thumbnail that has not been displayed counts as wasted. */
+    private static final long PREFETCH_TTL_MS = 30 * 1000;
+
+    private final Context mContext;
+
+    private final ImageLoader mImageLoader;
+
+    private final EncodedImageCache mEncodedImageCache;
+
+    private final ThumbnailBatchFetcher mBatchFetcher;
+
+    /** Prefetched thumbnails which have not yet been displayed, oldest first. */
+    private final LinkedHashMap<String, PrefetchedImage> mPrefetched =
+            new LinkedHashMap<String, PrefetchedImage>();
+
+    private long mOutstandingBytes;
+
+    private long mBudget = METERED_BUDGET;
+
+    private int mDirection = 1;
+
+    private int mLastFirstVisibleItem = -1;
+
+    private int mLastVisibleItemCount;
+
+    private long mPrefetchCount;
+
+    private long mHitCount;
+
+    private long mWastedCount;
+
+    public ThumbnailPrefetcher(Context context, ImageLoader imageLoader,
+            EncodedImageCache encodedImageCache, ThumbnailBatchFetcher batchFetcher) {
+        mContext = context.getApplicationContext();
+        mImageLoader = imageLoader;
+        mEncodedImageCache = encodedImageCache;
+        mBatchFetcher = batchFetcher;
+        updateBudget();
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState == SCROLL_STATE_TOUCH_SCROLL) {
+            // The network may have changed since the last scroll.
+            updateBudget();
+        } else if (scrollState == SCROLL_STATE_IDLE) {
+            Log.v(TAG, toString());
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (firstVisibleItem == mLastFirstVisibleItem
+                && visibleItemCount == mLastVisibleItemCount) {
+            return;
+        }
+
+        mLastFirstVisibleItem = firstVisibleItem;
+        mLastVisibleItemCount = visibleItemCount;
+
+        Adapter adapter = view.getAdapter();
+        if (adapter == null) {
+            return;
+        }
+
+        float velocity = 0;
+        if (view instanceof PinnedHeaderListView) {
+            velocity = ((PinnedHeaderListView) view).getScrollVelocity();
+        }
+
+        if (velocity != 0) {
+            mDirection = velocity > 0 ? 1 : -1;
+        }
+
+        expirePrefetched();
+
+        for (int i = 0; i < visibleItemCount; i++) {
+            recordDisplayed(getThumbnailUrl(adapter, firstVisibleItem + i));
+        }
+
+        int lookahead = Math.round(Math.abs(velocity) * LOOKAHEAD_SECONDS);
+        lookahead = Math.max(MIN_LOOKAHEAD_ROWS, Math.min(MAX_LOOKAHEAD_ROWS, lookahead));
+
+        List<String> decodes = new ArrayList<String>(DECODE_AHEAD_ROWS);
+        List<String> fetches = new ArrayList<String>(lookahead);
+
+        int position = mDirection > 0 ? firstVisibleItem + visibleItemCount : firstVisibleItem - 1;
+        for (int i = 0; i < lookahead && position >= 0 && position < totalItemCount; i++) {
+            String url = getThumbnailUrl(adapter, position);
+
+            if (url != null && !prefetch(url, i < DECODE_AHEAD_ROWS, decodes, fetches)) {
+                // The budget is exhausted.
+                break;
+            }
+
+            position += mDirection;
+        }
+
+        // Start the batch before any decode so that the decodes wait for it rather than
+        // fetching their images themselves.
+        List<String> batch = new ArrayList<String>(decodes);
+        batch.addAll(fetches);
+        boolean batched = mBatchFetcher.fetch(batch);
+
+        for (String url : decodes) {
+            mImageLoader.preload(url);
+        }
+
+        if (!batched) {
+            for (String url : fetches) {
+                mImageLoader.prefetch(url);
+            }
+        }
+    }
+
+    /**
+     * Account for prefetching the image at {@code url}, adding it to {@code decodes} if it
+     * should be decoded or to {@code fetches} if it should only be fetched.
+     *
+     * @return false if the image was not prefetched because the budget is exhausted.
+     */
+    private boolean prefetch(String url, boolean decode, List<String> decodes,
+            List<String> fetches) {
+        if (mPrefetched.containsKey(url)) {
+            return true;
+        }
+
+        if (mEncodedImageCache.contains(url)) {
+            // No I/O is required, so decoding ahead does not count towards the budget.
+            if (decode) {
+                decodes.add(url);
+            }
+            return true;
+        }
+
+        long estimatedBytes = mEncodedImageCache.getAverageEntrySize(DEFAULT_THUMBNAIL_SIZE);
+        if (mOutstandingBytes + estimatedBytes > mBudget) {
+            return false;
+        }
+
+        if (decode) {
+            decodes.add(url);
+        } else {
+            fetches.add(url);
+        }
+
+        mPrefetched.put(url, new PrefetchedImage(estimatedBytes, SystemClock.uptimeMillis()));
+        mOutstandingBytes += estimatedBytes;
+        mPrefetchCount++;
+
+        return true;
+    }
+
+    private void recordDisplayed(String url) {
+        PrefetchedImage image = url != null ? mPrefetched.remove(url) : null;
+
+        if (image != null) {
+            mOutstandingBytes -= image.estimatedBytes;
+            mHitCount++;
+        }
+    }
+
+    private void expirePrefetched() {
+        long now = SystemClock.uptimeMillis();
+        Iterator<PrefetchedImage> iterator = mPrefetched.values().iterator();
+
+        while (iterator.hasNext()) {
+            PrefetchedImage image = iterator.next();
+            if (now - image.prefetchTime < PREFETCH_TTL_MS) {
+                break;
+            }
+
+            iterator.remove();
+            mOutstandingBytes -= image.estimatedBytes;
+            mWastedCount++;
+        }
+    }
+
+    private void updateBudget() {
+        mBudget = NetworkUtils.isActiveNetworkMetered(mContext) ? METERED_BUDGET
+                : UNMETERED_BUDGET;
+    }
+
+    private static String getThumbnailUrl(Adapter adapter, int position) {
+        Object item = adapter.getItem(position);
+
+        if (item instanceof Photo && !TextUtils.isEmpty(((Photo) item).thumbnailUrl)) {
+            return ((Photo) item).thumbnailUrl;
+        }
+
+        return null;
+    }
+
+    public long getPrefetchCount() {
+        return mPrefetchCount;
+    }
+
+    /**
+     * @return the number of prefetched thumbnails which were later displayed.
+     */
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of prefetched thumbnails which expired without being displayed.
+     */
+    public long getWastedCount() {
+        return mWastedCount;
+    }
+
+    @Override
+    public String toString() {
+        long resolved = mHitCount + mWastedCount;
+        int hitPercent = resolved != 0 ? (int) (100 * mHitCount / resolved) : 0;
+
+        return String.format("ThumbnailPrefetcher[prefetched=%d,hits=%d,wasted=%d,hitRate=%d%%,"
+                + "outstanding=%d,budget=%d]", mPrefetchCount, mHitCount, mWastedCount,
+                hitPercent, mOutstandingBytes, mBudget);
+    }
+
+    private static class PrefetchedImage {
+
+        final long estimatedBytes;
+
+        final long prefetchTime;
+
+        PrefetchedImage(long estimatedBytes, long prefetchTime) {
+            this.estimatedBytes = estimatedBytes;
+            this.prefetchTime = prefetchTime;
+        }
+    }
+}
@@ -18,9 +18,12 @@ package com.google.plus.samples.photohunt;
 
 import static android.text.TextUtils.isEmpty;
 
+import java.io.File;
 import java.util.List;
 
 import android.content.Intent;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
@@ -29,6 +32,7 @@ import android.widget.Button;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.actionbarsherlock.view.MenuItem;
 import com.google.analytics.tracking.android.EasyTracker;
@@ -38,7 +42,9 @@ import com.google.plus.samples.photohunt.model.Photo;
 import com.google.plus.samples.photohunt.model.Theme;
 import com.google.plus.samples.photohunt.model.User;
 import com.google.plus.samples.photohunt.tasks.FetchJsonTask;
+import com.google.plus.samples.photohunt.tasks.FetchFileTask;
 import com.google.plus.samples.photohunt.tasks.FetchJsonTask.FetchCallback;
+import com.google.plus.samples.photohunt.widget.TiledImageView;
 
 /**
  * Allow users to view a single photo from the stream. Users that click on a
@@ -46,6 +52,9 @@ import com.google.plus.samples.photohunt.tasks.FetchJsonTask.FetchCallback;
  */
 public class ViewImageActivity extends BaseActivity {
 
+    /** Directory within the cache directory where full-size images are streamed. */
+    private static final String FULLSIZE_CACHE_DIR = "fullsize";
+
     private String mImageId;
 
     private String mAction;
@@ -72,12 +81,22 @@ public class ViewImageActivity extends BaseActivity {
 
     private FetchJsonTask<Photo> mImageTask;
 
+    /** Viewer which pans and zooms the full-size image, decoding only visible tiles. */
+    private TiledImageView mFullsizeView;
+
+    /** Streams the full-size image to disk for {@link #mFullsizeView}. */
+    private FetchFileTask mFullsizeTask;
+
+    /** Full-size image file for {@link #mPhoto}, deleted when the activity is stopped. */
+    private File mFullsizeFile;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.photo_list_item);
+        setContentView(R.layout.view_image_activity);
 
         mPhotoView = (ImageView) findViewById(R.id.photo_item);
+        mFullsizeView = (TiledImageView) findViewById(R.id.fullsize_view);
         mPromoteButton = (Button) findViewById(R.id.promote_button);
         mVoteButton = (Button) findViewById(R.id.vote_button);
         mVoteCount = (TextView) findViewById(R.id.vote_count);
@@ -109,13 +128,14 @@ public class ViewImageActivity extends BaseActivity {
         });
 
         if (mImageId != null) {
-            String imageUrl = String.format(Endpoints.PHOTO, mImageId);
+            String imageUrl = Endpoints.photo(mImageId);
             mImageTask = new FetchJsonTask<Photo>(imageUrl) {
                 { mReturnType = Photo.class; }
                 
                 @Override
                 protected void onSuccess(Photo result) {
                     mPhoto = result;
+                    prefetchFullsize();
 
                     if (mAction.equals("vote")) {
                         // If a deep link was provided, execute the action
@@ -131,6 +151,13 @@ public class ViewImageActivity extends BaseActivity {
             mImageTask.execute();
         }
 
+        mPhotoView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                showFullsize();
+            }
+        });
+
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
 
         update();
@@ -224,6 +251,106 @@ public class ViewImageActivity extends BaseActivity {
         }
     }
 
+    @Override
+    public void onBackPressed() {
+        if (mFullsizeView.getVisibility() == View.VISIBLE) {
+            hideFullsize();
+        } else {
+            super.onBackPressed();
+        }
+    }
+
+    @Override
+    protected void resetTaskState() {
+        super.resetTaskState();
+        hideFullsize();
+
+        if (mFullsizeTask != null) {
+            mFullsizeTask.cancel(true);
+            mFullsizeTask = null;
+        }
+
+        if (mFullsizeFile != null) {
+            mFullsizeFile.delete();
+            mFullsizeFile = null;
+        }
+    }
+
+    /**
+     * The photo being viewed is the one most likely to be opened full size, so on unmetered
+     * networks start streaming it before the user asks.
+     */
+    private void prefetchFullsize() {
+        if (mFullsizeFile == null && !NetworkUtils.isActiveNetworkMetered(this)) {
+            fetchFullsize();
+        }
+    }
+
+    private void fetchFullsize() {
+        if (mPhoto == null || isEmpty(mPhoto.fullsizeUrl)) {
+            return;
+        }
+
+        mFullsizeFile = new File(new File(getCacheDir(), FULLSIZE_CACHE_DIR), mPhoto.id + ".jpg");
+        mFullsizeTask = new FetchFileTask(mPhoto.fullsizeUrl, mFullsizeFile,
+                new FetchCallback<File>() {
+                    @Override
+                    public void onSuccess(File file) {
+                        mFullsizeTask = null;
+
+                        if (mFullsizeView.getVisibility() == View.VISIBLE) {
+                            mFullsizeView.setImageFile(file);
+                        }
+                    }
+
+                    @Override
+                    public void onError(File file) {
+                        mFullsizeTask = null;
+                        mFullsizeFile = null;
+
+                        if (mFullsizeView.getVisibility() == View.VISIBLE) {
+                            Toast.makeText(ViewImageActivity.this,
+                                    getString(R.string.fullsize_failure), Toast.LENGTH_LONG)
+                                    .show();
+                        }
+                    }
+                });
+
+        mFullsizeTask.execute();
+    }
+
+    /**
+     * Switch to the full-size viewer.  The thumbnail already bound to {@link #mPhotoView} is
+     * displayed immediately while the full-size image is streamed to the cache directory, then
+     * the visible region is decoded in tiles at the current zoom level.
+     */
+    private void showFullsize() {
+        if (mPhoto == null || isEmpty(mPhoto.fullsizeUrl)) {
+            return;
+        }
+
+        Drawable thumbnail = mPhotoView.getDrawable();
+        if (thumbnail instanceof BitmapDrawable) {
+            mFullsizeView.setPreview(((BitmapDrawable) thumbnail).getBitmap());
+        }
+
+        mFullsizeView.setVisibility(View.VISIBLE);
+
+        if (mFullsizeFile == null) {
+            fetchFullsize();
+        } else if (mFullsizeTask == null) {
+            // The full-size image was prefetched.
+            mFullsizeView.setImageFile(mFullsizeFile);
+        }
+
+        // Otherwise a prefetch is in flight and delivers the image when complete.
+    }
+
+    private void hideFullsize() {
+        mFullsizeView.recycle();
+        mFullsizeView.setVisibility(View.GONE);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -250,6 +377,16 @@ public class ViewImageActivity extends BaseActivity {
     }
 
     private void trackAnalytics() {
+        // Starting the tracker opens its database, so it waits until the first frame is drawn.
+        getStartupScheduler().runAfterFirstFrame(new Runnable() {
+            @Override
+            public void run() {
+                sendAnalytics();
+            }
+        });
+    }
+
+    private void sendAnalytics() {
         EasyTracker.getInstance().setContext(this);
         Tracker tracker = EasyTracker.getInstance().getTracker();
 
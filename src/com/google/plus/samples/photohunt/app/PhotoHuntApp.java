@@ -17,49 +17,254 @@
 package com.google.plus.samples.photohunt.app;
 
 import com.google.android.imageloader.ImageLoader;
+import com.google.plus.samples.photohunt.Endpoints;
+import com.google.plus.samples.photohunt.auth.AuthManager;
+import com.google.plus.samples.photohunt.cache.ApiResponseCache;
+import com.google.plus.samples.photohunt.cache.EncodedBitmapContentHandler;
+import com.google.plus.samples.photohunt.cache.EncodedImageCache;
+import com.google.plus.samples.photohunt.cache.EncodedPrefetchContentHandler;
+import com.google.plus.samples.photohunt.cache.ImageLoaderCache;
+import com.google.plus.samples.photohunt.cache.ThumbnailBatchFetcher;
+import com.google.plus.samples.photohunt.cache.ThumbnailStore;
+import com.google.plus.samples.photohunt.cache.TrimmableCache;
+import com.google.plus.samples.photohunt.upload.UploadManager;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.util.Log;
 
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Used to maintain global application state across PhotoHunt.
  */
 public class PhotoHuntApp extends Application {
 
-    private static final int HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
+    private static final String TAG = PhotoHuntApp.class.getSimpleName();
+
+    // ComponentCallbacks2.TRIM_MEMORY_RUNNING_* levels, which are delivered from API level 16
+    // but are not defined by the API level 15 build target.
+    private static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    private static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    private static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+
+    static {
+        StartupTrace.mark("process");
+    }
+
+    // API responses and images have separate disk caches so that images cannot evict the
+    // JSON needed to show the first screen.
+    private static final long API_HTTP_CACHE_SIZE = 2 * 1024 * 1024; // 2MB
+
+    private static final long THUMBNAIL_STORE_SIZE = 16 * 1024 * 1024; // 16MB
     
     // Image cache size equals 1/3 device memory up to a maximum of 50MB
     private static final long IMG_LOADER_CACHE_SIZE = 
     		Math.min(Runtime.getRuntime().maxMemory() / 3, 50 * 1024 * 1024);
 
+    // Encoded image cache size equals 1/16 device memory up to a maximum of 8MB
+    private static final long ENCODED_IMG_CACHE_SIZE =
+            Math.min(Runtime.getRuntime().maxMemory() / 16, 8 * 1024 * 1024);
+
     private ImageLoader mImageLoader;
 
+    private EncodedImageCache mEncodedImageCache;
+
+    private ThumbnailStore mThumbnailStore;
+
+    private ThumbnailBatchFetcher mThumbnailBatchFetcher;
+
+    private UploadManager mUploadManager;
+
+    private StartupScheduler mStartupScheduler;
+
+    /** In-memory caches which are trimmed when the system is low on memory. */
+    private final List<TrimmableCache> mTrimmableCaches =
+            new CopyOnWriteArrayList<TrimmableCache>();
+
     @Override
     public void onCreate() {
         super.onCreate();
+        StartupTrace.begin("application");
         initialize();
+        StartupTrace.end("application");
     }
 
     private void initialize() {
-        // Create a basic in-memory image cache. This should be replaced with a file
-        // response cache when used in production.
-        mImageLoader = new ImageLoader(IMG_LOADER_CACHE_SIZE);
-
-        try {
-            File httpCacheDir = new File(getCacheDir(), "http");
-            Class.forName("android.net.http.HttpResponseCache")
-                    .getMethod("install", File.class, long.class)
-                    .invoke(null, httpCacheDir, HTTP_CACHE_SIZE);
-        } catch (Exception httpResponseCacheNotAvailable) {
-            // Ignore.
+        mStartupScheduler = new StartupScheduler();
+
+        // Read the API configuration off the main thread; the first activity waits for it only
+        // if it needs a URL before the read completes.
+        mStartupScheduler.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                Endpoints.preload();
+            }
+        });
+
+        // Create an in-memory image cache.
+        // Encoded image bytes are kept in memory behind the decoded bitmaps so that images
+        // which fall out of the bitmap cache can be re-decoded without any I/O.
+        // Behind them, images are kept on disk in the thumbnail store, which is opened by the
+        // first image load on an ImageLoader thread.
+        mEncodedImageCache = new EncodedImageCache(ENCODED_IMG_CACHE_SIZE);
+        mThumbnailStore = new ThumbnailStore(new File(getCacheDir(), "thumbnails"),
+                THUMBNAIL_STORE_SIZE);
+        mThumbnailBatchFetcher = new ThumbnailBatchFetcher(mEncodedImageCache, mThumbnailStore);
+        mImageLoader = new ImageLoader(ImageLoader.DEFAULT_TASK_LIMIT, null,
+                new EncodedBitmapContentHandler(mEncodedImageCache, mThumbnailStore,
+                        mThumbnailBatchFetcher),
+                new EncodedPrefetchContentHandler(mEncodedImageCache, mThumbnailStore,
+                        mThumbnailBatchFetcher),
+                IMG_LOADER_CACHE_SIZE, null);
+        registerTrimmableCache(new ImageLoaderCache(mImageLoader, IMG_LOADER_CACHE_SIZE));
+        registerTrimmableCache(mEncodedImageCache);
+
+        AuthManager.initialize(this);
+        mUploadManager = new UploadManager(this);
+
+        // Opening the response cache reads its journal from disk.  Requests made before it is
+        // installed are not cached, which only affects the first screen's requests.
+        mStartupScheduler.runInBackgroundAfterFirstFrame(new Runnable() {
+            @Override
+            public void run() {
+                installHttpCache();
+            }
+        });
+    }
+
+    private void installHttpCache() {
+        File httpCacheDir = new File(getCacheDir(), "http");
+
+        // Earlier versions cached everything directly in this directory and then images in
+        // their own subdirectory; images are now kept by the thumbnail store.
+        deleteFiles(httpCacheDir);
+        deleteFiles(new File(httpCacheDir, "images"));
+
+        ApiResponseCache.install(new File(httpCacheDir, "api"), API_HTTP_CACHE_SIZE);
+    }
+
+    private static void deleteFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && !file.delete()) {
+                    Log.w(TAG, "Unable to delete " + file);
+                }
+            }
         }
     }
 
+    /**
+     * Only delivered on API level 14 and above; older platforms rely on {@link #onLowMemory()}.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        trimCaches(level, getRetainedFraction(level));
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        trimCaches(ComponentCallbacks2.TRIM_MEMORY_COMPLETE, 0);
+    }
+
+    /**
+     * Map a trim-memory level onto the fraction of each cache's maximum size to retain.  While
+     * the UI is visible we keep enough to avoid refetching on-screen thumbnails; once we are in
+     * the background we give memory back progressively as we move up the LRU list.
+     */
+    private static float getRetainedFraction(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return 0.5f;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return 0.25f;
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return 0.5f;
+        }
+
+        return 1;
+    }
+
+    private void trimCaches(int level, float retainedFraction) {
+        if (retainedFraction >= 1) {
+            return;
+        }
+
+        for (TrimmableCache cache : mTrimmableCaches) {
+            cache.trimToSize((long) (cache.getMaxSize() * retainedFraction));
+        }
+
+        Log.i(TAG, "Trimmed caches to " + retainedFraction + " at level " + level + ": "
+                + getCacheFootprints() + "; " + ApiResponseCache.getInstalled() + ", "
+                + mThumbnailStore);
+    }
+
+    /**
+     * Register an in-memory cache to be trimmed when the system is low on memory.
+     *
+     * @param cache the cache to register.
+     */
+    public void registerTrimmableCache(TrimmableCache cache) {
+        mTrimmableCaches.add(cache);
+    }
+
+    /**
+     * @return the approximate number of bytes held by each registered cache, keyed by name.
+     */
+    public Map<String, Long> getCacheFootprints() {
+        Map<String, Long> footprints = new LinkedHashMap<String, Long>();
+
+        for (TrimmableCache cache : mTrimmableCaches) {
+            footprints.put(cache.getName(), cache.getSize());
+        }
+
+        return footprints;
+    }
+
     /**
      * @return the imageLoader
      */
     public ImageLoader getImageLoader() {
         return mImageLoader;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the in-memory cache of encoded image bytes.
+     */
+    public EncodedImageCache getEncodedImageCache() {
+        return mEncodedImageCache;
+    }
+
+    /**
+     * @return the fetcher which batches thumbnail requests on high latency networks.
+     */
+    public ThumbnailBatchFetcher getThumbnailBatchFetcher() {
+        return mThumbnailBatchFetcher;
+    }
+
+    /**
+     * @return the scheduler for work which should not delay the first frame.
+     */
+    public StartupScheduler getStartupScheduler() {
+        return mStartupScheduler;
+    }
+
+    /**
+     * @return the background upload queue.
+     */
+    public UploadManager getUploadManager() {
+        return mUploadManager;
+    }
+}
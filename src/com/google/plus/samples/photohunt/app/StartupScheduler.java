@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.plus.samples.photohunt.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Keeps work that the first screen does not need off the critical path of a cold start.
+ *
+ * Work passed to {@link #runInBackground(Runnable)} starts straight away on a single low
+ * priority thread.  Work passed to {@link #runAfterFirstFrame(Runnable)} or
+ * {@link #runInBackgroundAfterFirstFrame(Runnable)} waits until the first activity has drawn,
+ * or until {@link #FIRST_FRAME_DEADLINE_MS} after the application was created if no activity
+ * is shown, for example when the process was started to send uploads.
+ *
+ * Must be used from the main thread.
+ */
+public class StartupScheduler {
+
+    /** Longest time deferred work waits for a first frame. */
+    private static final long FIRST_FRAME_DEADLINE_MS = 5000;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "Startup");
+                }
+            });
+
+    private final List<Runnable> mDeferred = new ArrayList<Runnable>();
+
+    private final List<Runnable> mDeferredBackground = new ArrayList<Runnable>();
+
+    private boolean mStarted;
+
+    private boolean mWatching;
+
+    private final Runnable mStartDeferred = new Runnable() {
+        @Override
+        public void run() {
+            startDeferred();
+        }
+    };
+
+    public StartupScheduler() {
+        mHandler.postDelayed(mStartDeferred, FIRST_FRAME_DEADLINE_MS);
+    }
+
+    /**
+     * Run {@code task} on the startup thread straight away.
+     */
+    public void runInBackground(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Run {@code task} on the main thread once the first frame has been drawn, or now if it
+     * already has.
+     */
+    public void runAfterFirstFrame(Runnable task) {
+        if (mStarted) {
+            task.run();
+        } else {
+            mDeferred.add(task);
+        }
+    }
+
+    /**
+     * Run {@code task} on the startup thread once the first frame has been drawn.
+     */
+    public void runInBackgroundAfterFirstFrame(Runnable task) {
+        if (mStarted) {
+            mExecutor.execute(task);
+        } else {
+            mDeferredBackground.add(task);
+        }
+    }
+
+    /**
+     * Start deferred work once {@code activity} has drawn its first frame.  Only the first
+     * activity to be watched counts; later calls do nothing.  Call once the content view has
+     * been set.
+     */
+    public void watchFirstFrame(Activity activity) {
+        if (mStarted || mWatching) {
+            return;
+        }
+
+        mWatching = true;
+        final View decor = activity.getWindow().getDecorView();
+        decor.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        decor.getViewTreeObserver().removeOnPreDrawListener(this);
+
+                        // Posted from the pre-draw pass, so it runs once the frame is drawn.
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                StartupTrace.mark("first-frame");
+                                startDeferred();
+                            }
+                        });
+                        return true;
+                    }
+                });
+    }
+
+    private void startDeferred() {
+        if (mStarted) {
+            return;
+        }
+
+        mStarted = true;
+        mHandler.removeCallbacks(mStartDeferred);
+
+        for (Runnable task : mDeferredBackground) {
+            mExecutor.execute(task);
+        }
+
+        for (Runnable task : mDeferred) {
+            task.run();
+        }
+
+        mDeferredBackground.clear();
+        mDeferred.clear();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.app;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Logs when each phase of startup, such as establishing the session or loading a photo list,
+ * starts and ends relative to process start, along with cold start milestones such as the first
+ * frame and the first photo shown.
+ *
+ * Only the first occurrence of each phase or milestone is recorded, so later reloads do not add
+ * noise and the log shows which phases overlapped during startup.
+ */
+public class StartupTrace {
+
+    private static final String TAG = StartupTrace.class.getSimpleName();
+
+    /**
+     * Time this class was loaded.  {@link PhotoHuntApp} loads it from its static initializer,
+     * before any other application code runs.
+     */
+    private static final long PROCESS_START = SystemClock.elapsedRealtime();
+
+    private static final Map<String, Long> sStarts = new HashMap<String, Long>();
+
+    private static final Map<String, Long> sEnds = new HashMap<String, Long>();
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Record the start of {@code phase}, unless it has already started once.
+     */
+    public static synchronized void begin(String phase) {
+        if (sStarts.containsKey(phase)) {
+            return;
+        }
+
+        long offset = SystemClock.elapsedRealtime() - PROCESS_START;
+        sStarts.put(phase, offset);
+        Log.i(TAG, phase + " started at +" + offset + "ms");
+    }
+
+    /**
+     * Record the end of {@code phase}, unless it has not started or has already ended once.
+     */
+    public static synchronized void end(String phase) {
+        Long start = sStarts.get(phase);
+        if (start == null || sEnds.containsKey(phase)) {
+            return;
+        }
+
+        long offset = SystemClock.elapsedRealtime() - PROCESS_START;
+        sEnds.put(phase, offset);
+        Log.i(TAG, phase + " ended at +" + offset + "ms (" + (offset - start) + "ms)");
+    }
+
+    /**
+     * Record that {@code milestone} has been reached, unless it has been reached once already.
+     */
+    public static synchronized void mark(String milestone) {
+        if (sEnds.containsKey(milestone)) {
+            return;
+        }
+
+        long offset = SystemClock.elapsedRealtime() - PROCESS_START;
+        sEnds.put(milestone, offset);
+        Log.i(TAG, milestone + " at +" + offset + "ms");
+    }
+
+    /**
+     * @return the time from process start to the end of {@code phase}, or to
+     *         {@code phase} if it is a milestone, or -1 if it has not ended.
+     */
+    public static synchronized long getEndOffset(String phase) {
+        Long end = sEnds.get(phase);
+        return end != null ? end : -1;
+    }
+}
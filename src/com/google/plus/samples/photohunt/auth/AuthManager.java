@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.auth;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.plus.samples.photohunt.model.User;
+
+/**
+ * Owns the PhotoHunt session of the signed in user.
+ *
+ * The session is cached with the expiry of the OAuth token behind it.  Activities that sign in
+ * while it is valid reuse it rather than fetching a token and connecting again.  A background
+ * thread refreshes the token and the session {@link #REFRESH_MARGIN_MS} before the token
+ * expires.  A refresh which fails, for example because the device is offline, keeps the
+ * current session and is retried with back-off.
+ *
+ * The session cookie, token, expiry and profile are persisted in private storage, so a
+ * restarted process can make authenticated requests as soon as it starts, before Google sign-in
+ * has completed.  A restored session is not checked up front.  A token that is close to expiry
+ * is refreshed in the background, and a session the service no longer accepts is replaced on
+ * the first 401.
+ *
+ * Requests made through {@link #execute(Request)} that are rejected with 401 re-authenticate
+ * and are replayed once.  Concurrent rejections share a single re-authentication: a request
+ * which was sent with credentials older than the current ones replays without re-authenticating
+ * again.
+ */
+public class AuthManager {
+
+    private static final String TAG = AuthManager.class.getSimpleName();
+
+    /**
+     * GoogleAuthUtil does not report when a token expires; Google OAuth access tokens are
+     * issued for an hour.
+     */
+    private static final long TOKEN_LIFETIME_MS = 60 * 60 * 1000;
+
+    /** How long before the token expires that it is refreshed. */
+    private static final long REFRESH_MARGIN_MS = 5 * 60 * 1000;
+
+    /** Delay before retrying a refresh which failed, doubled on each further failure. */
+    private static final long INITIAL_REFRESH_RETRY_MS = 30 * 1000;
+
+    private static final long MAX_REFRESH_RETRY_MS = 10 * 60 * 1000;
+
+    private static final String PREFS_NAME = "auth_session";
+
+    private static final String PREF_ACCOUNT = "account";
+
+    private static final String PREF_TOKEN = "token";
+
+    private static final String PREF_COOKIE = "cookie";
+
+    /** Expiry of the token in wall clock time, since the realtime clock restarts on boot. */
+    private static final String PREF_EXPIRES = "expires";
+
+    private static final String PREF_USER = "user";
+
+    private static AuthManager sInstance;
+
+    /**
+     * A request to the PhotoHunt service which can be replayed after re-authentication.
+     */
+    public interface Request<T> {
+        T execute() throws IOException;
+    }
+
+    /**
+     * Thrown by a {@link Request} when the service responds 401.
+     */
+    public static class UnauthorizedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int mGeneration;
+
+        /**
+         * @param generation the credential generation returned by
+         *        {@link AuthUtil#setAuthHeaders} for the rejected request.
+         */
+        public UnauthorizedException(String message, int generation) {
+            super(message);
+            mGeneration = generation;
+        }
+
+        public int getGeneration() {
+            return mGeneration;
+        }
+    }
+
+    private final Context mContext;
+
+    private final SharedPreferences mPrefs;
+
+    /** Time the process started, on the {@link SystemClock#elapsedRealtime()} clock. */
+    private final long mStartTime = SystemClock.elapsedRealtime();
+
+    /** True if the session in use was restored from storage rather than signed in. */
+    private boolean mRestored;
+
+    /** Time from process start to the first authenticated content, or -1 if not reported. */
+    private long mTimeToAuthenticatedContentMs = -1;
+
+    private final ScheduledExecutorService mRefreshExecutor =
+            Executors.newSingleThreadScheduledExecutor(new RefreshThreadFactory());
+
+    /** Held for the duration of each authentication, so that only one is in flight. */
+    private final Object mAuthLock = new Object();
+
+    /** Account of the signed in user, or null when signed out. */
+    private String mAccount;
+
+    /** Account to which {@link #mUser} and the published session belong. */
+    private String mSessionAccount;
+
+    private User mUser;
+
+    /** Time the current token expires, on the {@link SystemClock#elapsedRealtime()} clock. */
+    private long mExpiry;
+
+    private ScheduledFuture<?> mRefresh;
+
+    /** Number of refreshes which have failed since the last successful authentication. */
+    private int mRefreshFailures;
+
+    private int mAuthCount;
+
+    private int mReuseCount;
+
+    private int mReplayCount;
+
+    /**
+     * Create the shared AuthManager.  Called once when the application starts.
+     */
+    public static synchronized void initialize(Context context) {
+        if (sInstance == null) {
+            sInstance = new AuthManager(context.getApplicationContext());
+        }
+    }
+
+    /**
+     * @return the shared AuthManager.
+     */
+    public static synchronized AuthManager getInstance() {
+        if (sInstance == null) {
+            throw new IllegalStateException("AuthManager has not been initialized");
+        }
+
+        return sInstance;
+    }
+
+    private AuthManager(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        restore();
+    }
+
+    /**
+     * Restore the session persisted by a previous process.  If its token has expired or is
+     * about to, a refresh is started in the background straight away.
+     */
+    private synchronized void restore() {
+        String account = mPrefs.getString(PREF_ACCOUNT, null);
+        String token = mPrefs.getString(PREF_TOKEN, null);
+        String cookie = mPrefs.getString(PREF_COOKIE, null);
+        String userJson = mPrefs.getString(PREF_USER, null);
+
+        if (account == null || token == null || cookie == null || userJson == null) {
+            return;
+        }
+
+        try {
+            mUser = new Gson().fromJson(userJson, User.class);
+        } catch (JsonParseException e) {
+            Log.w(TAG, "Discarding malformed session", e);
+            clear();
+            return;
+        }
+
+        long remaining = mPrefs.getLong(PREF_EXPIRES, 0) - System.currentTimeMillis();
+        mAccount = account;
+        mSessionAccount = account;
+        mExpiry = SystemClock.elapsedRealtime() + remaining;
+        mRestored = true;
+        AuthUtil.restoreSession(token, cookie);
+        scheduleRefresh();
+
+        Log.v(TAG, "Restored session, token expires in " + remaining / 1000 + "s");
+    }
+
+    private void persist() {
+        mPrefs.edit()
+                .putString(PREF_ACCOUNT, mAccount)
+                .putString(PREF_TOKEN, AuthUtil.getAccessToken())
+                .putString(PREF_COOKIE, AuthUtil.getCookies())
+                .putLong(PREF_EXPIRES,
+                        System.currentTimeMillis() + mExpiry - SystemClock.elapsedRealtime())
+                .putString(PREF_USER, new Gson().toJson(mUser))
+                .commit();
+    }
+
+    private void clear() {
+        mPrefs.edit().clear().commit();
+    }
+
+    /**
+     * Establish a PhotoHunt session for {@code account}, reusing the current one if it belongs
+     * to the same account and its token is not about to expire.  Must not be called on the main
+     * thread.
+     *
+     * @return the PhotoHunt profile of the user, or null if authentication failed.
+     */
+    public User signIn(String account) {
+        synchronized (this) {
+            if (hasValidSession(account)) {
+                return mUser;
+            }
+
+            mAccount = account;
+        }
+
+        synchronized (mAuthLock) {
+            // Another activity may have signed in while this one waited.
+            synchronized (this) {
+                if (hasValidSession(account)) {
+                    return mUser;
+                }
+            }
+
+            return authenticate(account, false);
+        }
+    }
+
+    /**
+     * @return true if the current session belongs to {@code account} and can be reused.
+     */
+    private synchronized boolean hasValidSession(String account) {
+        long remaining = mExpiry - SystemClock.elapsedRealtime();
+
+        if (account.equals(mAccount) && account.equals(mSessionAccount) && mUser != null
+                && AuthUtil.hasSession() && remaining > REFRESH_MARGIN_MS) {
+            mReuseCount++;
+            Log.v(TAG, "Reusing session, token expires in " + remaining / 1000 + "s");
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Forget the session and stop refreshing it.
+     */
+    public void signOut() {
+        synchronized (this) {
+            mAccount = null;
+            mSessionAccount = null;
+            mUser = null;
+            mExpiry = 0;
+            mRestored = false;
+            cancelRefresh();
+            clear();
+        }
+
+        AuthUtil.invalidateSession();
+    }
+
+    /**
+     * @return the PhotoHunt profile of the signed in user, or null if there is none.  On a warm
+     *         start this is the profile of the restored session, available before sign-in.
+     */
+    public synchronized User getUser() {
+        return mUser;
+    }
+
+    /**
+     * Record that content requiring the session has been shown, logging the time taken from
+     * process start the first time this is called.
+     */
+    public synchronized void reportAuthenticatedContent() {
+        if (mTimeToAuthenticatedContentMs >= 0) {
+            return;
+        }
+
+        mTimeToAuthenticatedContentMs = SystemClock.elapsedRealtime() - mStartTime;
+        Log.i(TAG, "Authenticated content after " + mTimeToAuthenticatedContentMs + "ms ("
+                + (mRestored ? "restored session" : "signed in") + ")");
+    }
+
+    /**
+     * @return the time from process start to the first authenticated content, or -1 if none
+     *         has been shown yet.
+     */
+    public synchronized long getTimeToAuthenticatedContentMs() {
+        return mTimeToAuthenticatedContentMs;
+    }
+
+    /**
+     * Run {@code request}, re-authenticating and replaying it once if it is rejected with 401.
+     * Must not be called on the main thread.
+     */
+    public <T> T execute(Request<T> request) throws IOException {
+        try {
+            return request.execute();
+        } catch (UnauthorizedException e) {
+            if (!reauthenticate(e.getGeneration())) {
+                throw e;
+            }
+
+            synchronized (this) {
+                mReplayCount++;
+            }
+            Log.v(TAG, "Replaying request after re-authentication: " + e.getMessage());
+            return request.execute();
+        }
+    }
+
+    /**
+     * Replace credentials which the service rejected.  If they have already been replaced since
+     * {@code generation}, by a concurrent caller or a scheduled refresh, this returns straight
+     * away.
+     *
+     * @param generation the credential generation the rejected request was sent with.
+     * @return true if there are newer credentials to replay the request with.
+     */
+    public boolean reauthenticate(int generation) {
+        synchronized (mAuthLock) {
+            if (AuthUtil.getGeneration() != generation) {
+                return AuthUtil.hasSession();
+            }
+
+            String account = getAccount();
+            if (account == null) {
+                return false;
+            }
+
+            Log.v(TAG, "Credentials rejected, re-authenticating");
+            return authenticate(account, true) != null;
+        }
+    }
+
+    /**
+     * Fetch a new token and exchange it for a new session.  Called holding {@link #mAuthLock}.
+     *
+     * @param rejected true if the service has rejected the current session, which therefore
+     *        cannot be kept if this fails.
+     * @return the PhotoHunt profile of the user; on failure, the profile of the current session
+     *         if it is kept, otherwise null.
+     */
+    private User authenticate(String account, boolean rejected) {
+        long start = SystemClock.elapsedRealtime();
+        User user = AuthUtil.authenticate(mContext, account);
+
+        synchronized (this) {
+            mAuthCount++;
+
+            if (!account.equals(mAccount)) {
+                // Signed out while authenticating.
+                AuthUtil.invalidateSession();
+                return null;
+            }
+
+            cancelRefresh();
+
+            if (user != null) {
+                mUser = user;
+                mSessionAccount = account;
+                mExpiry = start + TOKEN_LIFETIME_MS;
+                mRefreshFailures = 0;
+                scheduleRefresh();
+                persist();
+                Log.v(TAG, "Authenticated in " + (SystemClock.elapsedRealtime() - start)
+                        + "ms (" + mAuthCount + " authentications, " + mReuseCount + " reused, "
+                        + mReplayCount + " replayed requests)");
+            } else if (!rejected && account.equals(mSessionAccount) && mUser != null
+                    && AuthUtil.hasSession()) {
+                // Most likely a transient failure such as being offline.  The current session
+                // is still published, so keep using it until the retry succeeds or a request
+                // is rejected.
+                long delay = Math.min(MAX_REFRESH_RETRY_MS,
+                        INITIAL_REFRESH_RETRY_MS << Math.min(mRefreshFailures, 10));
+                mRefreshFailures++;
+                scheduleRefresh(delay);
+                Log.w(TAG, "Unable to refresh the session, retrying in " + delay / 1000 + "s");
+                return mUser;
+            } else {
+                mUser = null;
+                mSessionAccount = null;
+                mExpiry = 0;
+            }
+
+            return user;
+        }
+    }
+
+    private synchronized String getAccount() {
+        return mAccount;
+    }
+
+    /**
+     * Schedule a refresh ahead of the token expiring.  The executor's clock stops while the
+     * device sleeps, so a refresh may run late; requests rejected meanwhile re-authenticate.
+     */
+    private void scheduleRefresh() {
+        scheduleRefresh(Math.max(0, mExpiry - REFRESH_MARGIN_MS - SystemClock.elapsedRealtime()));
+    }
+
+    private void scheduleRefresh(long delay) {
+        mRefresh = mRefreshExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                String account = getAccount();
+                if (account == null) {
+                    return;
+                }
+
+                synchronized (mAuthLock) {
+                    Log.v(TAG, "Refreshing token ahead of expiry");
+                    authenticate(account, false);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelRefresh() {
+        if (mRefresh != null) {
+            mRefresh.cancel(false);
+            mRefresh = null;
+        }
+    }
+
+    private static class RefreshThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "Auth refresh");
+        }
+    }
+}
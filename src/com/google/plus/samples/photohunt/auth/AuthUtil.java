@@ -58,30 +58,91 @@ public class AuthUtil {
 
     private static final String ACCESS_TOKEN_JSON = "{ \"access_token\":\"%s\"}";
 
-    private static String sAccessToken = null;
+    /**
+     * Credentials of the current session, replaced as a whole whenever they change so that
+     * request threads read them without locking.
+     */
+    private static volatile Credentials sCredentials = new Credentials(null, null, 0);
 
-    private static String sCookies = null;
+    /**
+     * Add the credentials of the current session to a request.  Neither locks nor allocates,
+     * and never logs the token.
+     *
+     * @return the generation of the credentials, to pass to
+     *         {@link #checkAuthorized(HttpURLConnection, int)}.
+     */
+    public static int setAuthHeaders(HttpURLConnection connection) {
+        Credentials credentials = sCredentials;
 
-    public static void setAuthHeaders(HttpURLConnection connection) {
-        Log.d(TAG, "Authorization: OAuth " + sAccessToken);
-        connection.setRequestProperty("Authorization", "OAuth " + sAccessToken);
-        connection.setRequestProperty("Cookie", sCookies);
+        if (credentials.authorization != null) {
+            connection.setRequestProperty("Authorization", credentials.authorization);
+        }
+
+        if (credentials.cookies != null) {
+            connection.setRequestProperty("Cookie", credentials.cookies);
+        }
+
+        return credentials.generation;
+    }
+
+    /**
+     * @throws AuthManager.UnauthorizedException if the service rejected the credentials the
+     *         request was sent with, so that {@link AuthManager#execute} can replay it.
+     */
+    public static void checkAuthorized(HttpURLConnection connection, int generation)
+            throws IOException {
+        if (connection.getResponseCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            throw new AuthManager.UnauthorizedException("Unauthorized request to "
+                    + connection.getURL(), generation);
+        }
+    }
+
+    /**
+     * @return the generation of the current credentials.
+     */
+    public static int getGeneration() {
+        return sCredentials.generation;
+    }
+
+    /**
+     * @return true if a PhotoHunt session has been established, so that authenticated requests
+     *         can be made.
+     */
+    public static boolean hasSession() {
+        return sCredentials.cookies != null;
     }
 
+    /**
+     * Fetch a new token for {@code account} and exchange it for a new PhotoHunt session.  The
+     * current credentials stay published until the new session replaces them, so they remain
+     * in use if this fails.
+     *
+     * @return the PhotoHunt profile of the user, or null if authentication failed.
+     */
     public static User authenticate(Context ctx, String account) {
         HttpURLConnection urlConnection = null;
         OutputStream outStream = null;
         String response = null;
+        String accessToken = null;
+        String previousToken = sCredentials.accessToken;
         int statusCode = 0;
 
         try {
-            URL url = new URL(Endpoints.API_CONNECT);
+            URL url = new URL(Endpoints.connect());
 
-            sAccessToken = GoogleAuthUtil.getToken(ctx, account, AuthUtil.SCOPE_STRING);
+            accessToken = GoogleAuthUtil.getToken(ctx, account, AuthUtil.SCOPE_STRING);
+            if (accessToken.equals(previousToken)) {
+                // Google Play services hands out its cached token until that is invalidated,
+                // so a new one can only be fetched by dropping the cached copy of the token in
+                // use.  The token stays published, and valid, until it expires or is replaced.
+                GoogleAuthUtil.invalidateToken(ctx, accessToken);
+                previousToken = null;
+                accessToken = GoogleAuthUtil.getToken(ctx, account, AuthUtil.SCOPE_STRING);
+            }
             
-            Log.v(TAG, "Authenticating at [" + url + "] with: " + sAccessToken);
+            Log.v(TAG, "Authenticating at [" + url + "]");
             
-            byte[] postBody = String.format(ACCESS_TOKEN_JSON, sAccessToken).getBytes();
+            byte[] postBody = String.format(ACCESS_TOKEN_JSON, accessToken).getBytes();
 
             urlConnection = (HttpURLConnection) url.openConnection();
             urlConnection.setRequestMethod("POST");
@@ -108,7 +169,12 @@ public class AuthUtil {
                             result = new Gson().fromJson(response, User.class);
                         }
                         
-                        sCookies = cookie;
+                        publish(accessToken, cookie);
+
+                        // The new token is in hand, so the one it replaces can be dropped.
+                        if (previousToken != null && !previousToken.equals(accessToken)) {
+                            GoogleAuthUtil.invalidateToken(ctx, previousToken);
+                        }
                         break;
                     }
                 }
@@ -120,7 +186,7 @@ public class AuthUtil {
                 response = HttpUtils.getErrorResponse(urlConnection);
                 
                 Log.w(TAG, "HTTP Status (" + statusCode + ") while authenticating: " + response);
-                GoogleAuthUtil.invalidateToken(ctx, sAccessToken);
+                GoogleAuthUtil.invalidateToken(ctx, accessToken);
                 return null;
             }
         } catch (MalformedURLException e) {
@@ -128,9 +194,12 @@ public class AuthUtil {
         } catch (IOException e) {
             Log.e(TAG, e.getMessage(), e);
         } catch (GoogleAuthException e) {
-            GoogleAuthUtil.invalidateToken(ctx, sAccessToken);
+            Log.w(TAG, "Unable to get a token: " + e.getMessage());
+            if (accessToken != null) {
+                GoogleAuthUtil.invalidateToken(ctx, accessToken);
+            }
         } catch (JsonParseException jsonException) {
-            Log.e(TAG, "Unable to parse the json response from: " + Endpoints.API_CONNECT,
+            Log.e(TAG, "Unable to parse the json response from: " + Endpoints.connect(),
                     jsonException);
             Log.e(TAG, "Response was: " + response);
         } finally {
@@ -150,8 +219,51 @@ public class AuthUtil {
         return null;
     }
 
+    static String getAccessToken() {
+        return sCredentials.accessToken;
+    }
+
+    static String getCookies() {
+        return sCredentials.cookies;
+    }
+
+    /**
+     * Reinstate credentials persisted by a previous process.
+     */
+    static void restoreSession(String accessToken, String cookies) {
+        publish(accessToken, cookies);
+    }
+
     public static void invalidateSession() {
-        sAccessToken = null;
-        sCookies = null;
+        publish(null, null);
+    }
+
+    /**
+     * Replace the credentials with a new snapshot of the next generation.  Writers are rare,
+     * so they synchronize to keep generations unique.
+     */
+    private static synchronized void publish(String accessToken, String cookies) {
+        sCredentials = new Credentials(accessToken, cookies, sCredentials.generation + 1);
+    }
+
+    /**
+     * Immutable credentials with their header values computed once, when they are published.
+     */
+    private static final class Credentials {
+
+        final String accessToken;
+
+        final String authorization;
+
+        final String cookies;
+
+        final int generation;
+
+        Credentials(String accessToken, String cookies, int generation) {
+            this.accessToken = accessToken;
+            this.authorization = accessToken != null ? "OAuth " + accessToken : null;
+            this.cookies = cookies;
+            this.generation = generation;
+        }
     }
 }
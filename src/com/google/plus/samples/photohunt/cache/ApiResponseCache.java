@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.plus.samples.photohunt.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.CacheRequest;
+import java.net.CacheResponse;
+import java.net.ResponseCache;
+import java.net.SecureCacheResponse;
+import java.net.URI;
+import java.net.URLConnection;
+import java.security.Principal;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import android.annotation.SuppressLint;
+import android.net.http.HttpResponseCache;
+import android.util.Log;
+
+import com.google.plus.samples.photohunt.Endpoints;
+
+/**
+ * HTTP disk cache for PhotoHunt API responses, backed by the platform {@link HttpResponseCache}.
+ * Images are not cached here but by the {@link ThumbnailStore}, so thumbnails cannot push the
+ * JSON the first screen needs out of the cache.
+ *
+ * The freshness of API responses is decided by {@link Endpoints#getMaxAge(String)} rather than
+ * by the server's headers: the cached headers are rewritten on the way out, and the platform
+ * then serves the response, revalidates it or fetches it again as usual.  Responses for
+ * endpoints which must never be cached are neither stored nor served.  After
+ * {@link #invalidate()}, for example following a vote, every API response stored before the
+ * call is revalidated.
+ *
+ * Only responses the server allows to be stored are cached, whatever their override.
+ */
+public class ApiResponseCache extends ResponseCache {
+
+    private static final String TAG = ApiResponseCache.class.getSimpleName();
+
+    /** Header in which the platform records when a cached response was received. */
+    private static final String RECEIVED_MILLIS = "X-Android-Received-Millis";
+
+    /** Header in which the platform records whether a response came from the cache. */
+    private static final String RESPONSE_SOURCE = "X-Android-Response-Source";
+
+    private static final String[] FRESHNESS_HEADERS = { "Cache-Control", "Expires", "Pragma" };
+
+    private final ResponseCache mCache;
+
+    /** Wall clock time of the last {@link #invalidate()}, or 0. */
+    private volatile long mInvalidated;
+
+    private final Stats mStats = new Stats();
+
+    private ApiResponseCache(ResponseCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Install the cache as the default {@link ResponseCache}.  Reads the cache journal from
+     * disk, so call it off the main thread.  Does nothing before API level 13, which has no
+     * platform disk cache.
+     *
+     * @param directory directory in which the cache keeps its files.
+     * @param maxSize most bytes kept.
+     */
+    public static void install(File directory, long maxSize) {
+        if (android.os.Build.VERSION.SDK_INT < 13) {
+            return;
+        }
+
+        try {
+            Installer.install(directory, maxSize);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to install the HTTP cache", e);
+        }
+    }
+
+    /**
+     * @return the installed cache, or null if there is none.
+     */
+    public static ApiResponseCache getInstalled() {
+        ResponseCache cache = ResponseCache.getDefault();
+        return cache instanceof ApiResponseCache ? (ApiResponseCache) cache : null;
+    }
+
+    /**
+     * Revalidate every API response cached so far the next time it is requested.  Call after
+     * changing data on the server, or when the user asks for fresh data.  Does nothing if no
+     * cache is installed.
+     */
+    public static void invalidateApi() {
+        ApiResponseCache cache = getInstalled();
+        if (cache != null) {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * Count whether the response of {@code connection} was served from the cache, revalidated
+     * or fetched.  Call once the response has been received.  Does nothing if no cache is
+     * installed.
+     */
+    public static void recordResponse(URLConnection connection) {
+        ApiResponseCache cache = getInstalled();
+        if (cache != null) {
+            cache.mStats.record(connection.getHeaderField(RESPONSE_SOURCE));
+        }
+    }
+
+    /**
+     * See {@link #invalidateApi()}.
+     */
+    public void invalidate() {
+        mInvalidated = System.currentTimeMillis();
+    }
+
+    @Override
+    public CacheResponse get(URI uri, String requestMethod,
+            Map<String, List<String>> requestHeaders) throws IOException {
+        String url = uri.toString();
+        int maxAge = Endpoints.getMaxAge(url);
+        if (!Endpoints.isApiUrl(url) || maxAge == Endpoints.MAX_AGE_NEVER) {
+            return null;
+        }
+
+        CacheResponse response = mCache.get(uri, requestMethod, requestHeaders);
+        if (response == null || maxAge == Endpoints.MAX_AGE_SERVER) {
+            return response;
+        }
+
+        Map<String, List<String>> headers = response.getHeaders();
+        String cacheControl = isInvalidated(headers) ? "no-cache" : "max-age=" + maxAge;
+        headers = replaceFreshness(headers, cacheControl);
+
+        if (response instanceof SecureCacheResponse) {
+            return new SecureResponse((SecureCacheResponse) response, headers);
+        } else {
+            return new Response(response, headers);
+        }
+    }
+
+    @Override
+    public CacheRequest put(URI uri, URLConnection connection) throws IOException {
+        String url = uri.toString();
+        if (!Endpoints.isApiUrl(url) || Endpoints.getMaxAge(url) == Endpoints.MAX_AGE_NEVER) {
+            return null;
+        }
+
+        return mCache.put(uri, connection);
+    }
+
+    /**
+     * @return true if the response with {@code headers} was stored before the last
+     *         {@link #invalidate()}.
+     */
+    private boolean isInvalidated(Map<String, List<String>> headers) {
+        long invalidated = mInvalidated;
+        if (invalidated == 0) {
+            return false;
+        }
+
+        List<String> values = getHeader(headers, RECEIVED_MILLIS);
+        if (values == null || values.isEmpty()) {
+            return true;
+        }
+
+        try {
+            return Long.parseLong(values.get(0)) < invalidated;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private static List<String> getHeader(Map<String, List<String>> headers, String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return a copy of {@code headers} whose only freshness header is {@code Cache-Control:
+     *         cacheControl}.
+     */
+    private static Map<String, List<String>> replaceFreshness(
+            Map<String, List<String>> headers, String cacheControl) {
+        Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (!isFreshnessHeader(header.getKey())) {
+                result.put(header.getKey(), header.getValue());
+            }
+        }
+
+        List<String> value = new ArrayList<String>(1);
+        value.add(cacheControl);
+        result.put(FRESHNESS_HEADERS[0], value);
+        return result;
+    }
+
+    private static boolean isFreshnessHeader(String name) {
+        for (String freshnessHeader : FRESHNESS_HEADERS) {
+            if (freshnessHeader.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "ApiResponseCache[" + mStats + "]";
+    }
+
+    /**
+     * Counts how requests were answered.
+     */
+    private static class Stats {
+
+        /** Served from the cache without contacting the server. */
+        private final AtomicLong mHits = new AtomicLong();
+
+        /** Revalidated with the server, which confirmed the cached response. */
+        private final AtomicLong mRevalidations = new AtomicLong();
+
+        /** Fetched from the server, including revalidations which returned a new response. */
+        private final AtomicLong mMisses = new AtomicLong();
+
+        /**
+         * @param source the response source header, such as {@code "CACHE 200"} or
+         *        {@code "CONDITIONAL_CACHE 304"}.
+         */
+        void record(String source) {
+            if (source == null) {
+                mMisses.incrementAndGet();
+            } else if (source.startsWith("CACHE")) {
+                mHits.incrementAndGet();
+            } else if (source.startsWith("CONDITIONAL_CACHE 304")) {
+                mRevalidations.incrementAndGet();
+            } else {
+                mMisses.incrementAndGet();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + mHits + ",revalidated=" + mRevalidations + ",misses=" + mMisses;
+        }
+    }
+
+    /**
+     * A cached response with rewritten headers.
+     */
+    private static class Response extends CacheResponse {
+
+        private final CacheResponse mResponse;
+
+        private final Map<String, List<String>> mHeaders;
+
+        Response(CacheResponse response, Map<String, List<String>> headers) {
+            mResponse = response;
+            mHeaders = headers;
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaders() {
+            return mHeaders;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return mResponse.getBody();
+        }
+    }
+
+    /**
+     * A cached HTTPS response with rewritten headers.  HTTPS connections ignore cached
+     * responses which do not carry the details of their TLS session.
+     */
+    private static class SecureResponse extends SecureCacheResponse {
+
+        private final SecureCacheResponse mResponse;
+
+        private final Map<String, List<String>> mHeaders;
+
+        SecureResponse(SecureCacheResponse response, Map<String, List<String>> headers) {
+            mResponse = response;
+            mHeaders = headers;
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaders() {
+            return mHeaders;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return mResponse.getBody();
+        }
+
+        @Override
+        public String getCipherSuite() {
+            return mResponse.getCipherSuite();
+        }
+
+        @Override
+        public List<Certificate> getLocalCertificateChain() {
+            return mResponse.getLocalCertificateChain();
+        }
+
+        @Override
+        public List<Certificate> getServerCertificateChain()
+                throws SSLPeerUnverifiedException {
+            return mResponse.getServerCertificateChain();
+        }
+
+        @Override
+        public Principal getPeerPrincipal() throws SSLPeerUnverifiedException {
+            return mResponse.getPeerPrincipal();
+        }
+
+        @Override
+        public Principal getLocalPrincipal() {
+            return mResponse.getLocalPrincipal();
+        }
+    }
+
+    /**
+     * Opens the platform cache, which was added in API level 13.
+     */
+    @SuppressLint("NewApi")
+    private static class Installer {
+
+        static void install(File directory, long maxSize) throws IOException {
+            // HttpResponseCache.install() makes the platform cache the default; wrap it.
+            ResponseCache.setDefault(new ApiResponseCache(
+                    HttpResponseCache.install(directory, maxSize)));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ContentHandler;
+import java.net.URLConnection;
+import java.util.concurrent.Callable;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.plus.samples.photohunt.HttpUtils;
+import com.google.plus.samples.photohunt.image.DecodeExecutor;
+
+/**
+ * Bitmap {@link ContentHandler} for the {@link com.google.android.imageloader.ImageLoader} which
+ * consults an {@link EncodedImageCache} and then a {@link ThumbnailStore} on disk before going
+ * to the network.  An image which is part of a {@link ThumbnailBatchFetcher} batch in flight is
+ * waited for rather than fetched again.
+ *
+ * The ImageLoader invokes content handlers from its worker threads, so both the cache lookup
+ * and the decode happen off the main thread.  Those threads perform the network I/O; the decode
+ * itself is handed to the {@link DecodeExecutor} so that decode concurrency is bounded by the
+ * number of cores and the most recently requested image is decoded first.
+ *
+ * Cached bytes which cannot be decoded are dropped from both tiers and the image is fetched
+ * from the network once more, so a damaged entry does not fail every later request.
+ */
+public class EncodedBitmapContentHandler extends ContentHandler {
+
+    private static final String TAG = EncodedBitmapContentHandler.class.getSimpleName();
+
+    private final EncodedImageCache mCache;
+
+    private final ThumbnailStore mStore;
+
+    private final ThumbnailBatchFetcher mBatchFetcher;
+
+    public EncodedBitmapContentHandler(EncodedImageCache cache, ThumbnailStore store,
+            ThumbnailBatchFetcher batchFetcher) {
+        mCache = cache;
+        mStore = store;
+        mBatchFetcher = batchFetcher;
+    }
+
+    @Override
+    public Bitmap getContent(URLConnection connection) throws IOException {
+        String url = connection.getURL().toString();
+        mBatchFetcher.awaitPending(url);
+
+        byte[] data = mCache.get(url);
+        boolean cached = data != null;
+        boolean stored = cached;
+
+        if (!cached) {
+            data = mStore.get(url);
+            stored = data != null;
+        }
+
+        if (stored) {
+            Bitmap bitmap = decode(url, data);
+            if (bitmap != null) {
+                if (!cached) {
+                    mCache.put(url, data);
+                }
+
+                return bitmap;
+            }
+
+            // The prefetch handler caches bytes without decoding them, so the same damaged
+            // bytes may be in both tiers.
+            Log.w(TAG, "Discarding cached image which could not be decoded: " + url);
+            mCache.remove(url);
+            mStore.remove(url);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        InputStream input = connection.getInputStream();
+        mBatchFetcher.recordLatency(SystemClock.elapsedRealtime() - start);
+        try {
+            data = HttpUtils.getContent(input).toByteArray();
+        } finally {
+            input.close();
+        }
+
+        Bitmap bitmap = decode(url, data);
+        if (bitmap == null) {
+            throw new IOException("Image could not be decoded");
+        }
+
+        // Only cache bytes which decoded successfully.
+        mStore.put(url, data);
+        mCache.put(url, data);
+
+        return bitmap;
+    }
+
+    private static Bitmap decode(String url, final byte[] data) throws IOException {
+        return DecodeExecutor.getInstance().execute(url, DecodeExecutor.PRIORITY_VISIBLE,
+                new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() {
+                        return BitmapFactory.decodeByteArray(data, 0, data.length);
+                    }
+                });
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Memory cache of encoded (compressed) image bytes keyed by URL.
+ *
+ * Encoded JPEG thumbnails are roughly an order of magnitude smaller than the decoded bitmaps
+ * held by the {@link com.google.android.imageloader.ImageLoader}, so this tier keeps many more
+ * recently seen images in memory.  It sits between the decoded bitmap cache and the
+ * {@link ThumbnailStore} on disk: a hit costs a decode but no I/O.
+ */
+public class EncodedImageCache implements TrimmableCache {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Entries larger than this fraction of the budget are not cached so that a single large
+     * image cannot flush all of the thumbnails.
+     */
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    private final LinkedHashMap<String, byte[]> mEntries =
+            new LinkedHashMap<String, byte[]>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+
+    private final long mMaxSize;
+
+    private long mSize;
+
+    private long mHitCount;
+
+    private long mMissCount;
+
+    private long mEvictionCount;
+
+    /**
+     * @param maxSize the maximum number of encoded bytes to hold.
+     */
+    public EncodedImageCache(long maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @param url the URL the image was fetched from.
+     * @return the encoded image bytes, or null if they are not cached.
+     */
+    public synchronized byte[] get(String url) {
+        byte[] data = mEntries.get(url);
+
+        if (data != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+
+        return data;
+    }
+
+    /**
+     * Check whether an image is cached without affecting its recency or the hit statistics.
+     *
+     * @param url the URL the image was fetched from.
+     * @return true if the encoded image bytes are cached.
+     */
+    public synchronized boolean contains(String url) {
+        return mEntries.containsKey(url);
+    }
+
+    /**
+     * @return the average size of a cached entry, or {@code defaultSize} if the cache is empty.
+     */
+    public synchronized long getAverageEntrySize(long defaultSize) {
+        return mEntries.isEmpty() ? defaultSize : mSize / mEntries.size();
+    }
+
+    /**
+     * Cache the encoded bytes of an image, evicting the least recently used entries if needed.
+     *
+     * @param url the URL the image was fetched from.
+     * @param data the encoded image.  The array must not be modified after it is cached.
+     */
+    public synchronized void put(String url, byte[] data) {
+        if (url == null || data == null || data.length > mMaxSize / MAX_ENTRY_FRACTION) {
+            return;
+        }
+
+        byte[] previous = mEntries.put(url, data);
+        if (previous != null) {
+            mSize -= previous.length;
+        }
+
+        mSize += data.length;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Drop the cached bytes of an image, for example because they could not be decoded.
+     *
+     * @param url the URL the image was fetched from.
+     */
+    public synchronized void remove(String url) {
+        byte[] previous = mEntries.remove(url);
+        if (previous != null) {
+            mSize -= previous.length;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "encoded-images";
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    @Override
+    public synchronized void trimToSize(long maxBytes) {
+        Iterator<byte[]> iterator = mEntries.values().iterator();
+
+        while (mSize > maxBytes && iterator.hasNext()) {
+            mSize -= iterator.next().length;
+            iterator.remove();
+            mEvictionCount++;
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = mHitCount + mMissCount;
+        int hitPercent = lookups != 0 ? (int) (100 * mHitCount / lookups) : 0;
+
+        return String.format("EncodedImageCache[size=%d,maxSize=%d,entries=%d,hits=%d,misses=%d,"
+                + "evictions=%d,hitRate=%d%%]", mSize, mMaxSize, mEntries.size(), mHitCount,
+                mMissCount, mEvictionCount, hitPercent);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ContentHandler;
+import java.net.URLConnection;
+
+import android.os.SystemClock;
+
+import com.google.plus.samples.photohunt.HttpUtils;
+
+/**
+ * Prefetch {@link ContentHandler} for the {@link com.google.android.imageloader.ImageLoader}
+ * which warms an {@link EncodedImageCache} without decoding the image, reading it from the
+ * {@link ThumbnailStore} if it is there and storing it there if it is not.
+ *
+ * Prefetched images cost only their encoded size in memory until they are bound to a view, at
+ * which point {@link EncodedBitmapContentHandler} decodes them without any I/O.
+ */
+public class EncodedPrefetchContentHandler extends ContentHandler {
+
+    private final EncodedImageCache mCache;
+
+    private final ThumbnailStore mStore;
+
+    private final ThumbnailBatchFetcher mBatchFetcher;
+
+    public EncodedPrefetchContentHandler(EncodedImageCache cache, ThumbnailStore store,
+            ThumbnailBatchFetcher batchFetcher) {
+        mCache = cache;
+        mStore = store;
+        mBatchFetcher = batchFetcher;
+    }
+
+    @Override
+    public Object getContent(URLConnection connection) throws IOException {
+        String url = connection.getURL().toString();
+        mBatchFetcher.awaitPending(url);
+
+        if (!mCache.contains(url)) {
+            byte[] data = mStore.get(url);
+
+            if (data == null) {
+                long start = SystemClock.elapsedRealtime();
+                InputStream input = connection.getInputStream();
+                mBatchFetcher.recordLatency(SystemClock.elapsedRealtime() - start);
+                try {
+                    data = HttpUtils.getContent(input).toByteArray();
+                } finally {
+                    input.close();
+                }
+
+                mStore.put(url, data);
+            }
+
+            mCache.put(url, data);
+        }
+
+        return null;
+    }
+}
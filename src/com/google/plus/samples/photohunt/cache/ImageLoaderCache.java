@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.cache;
+
+import java.lang.reflect.Field;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.google.android.imageloader.ImageLoader;
+
+/**
+ * Exposes the decoded {@link Bitmap} cache held by an {@link ImageLoader} as a
+ * {@link TrimmableCache}.
+ *
+ * The ImageLoader does not provide a way to release its cache, so the underlying access-ordered
+ * map is located via reflection.  If the field cannot be found the cache reports a size of zero
+ * and trimming has no effect.
+ */
+public class ImageLoaderCache implements TrimmableCache {
+
+    private static final String TAG = ImageLoaderCache.class.getSimpleName();
+
+    private static final String BITMAPS_FIELD = "mBitmaps";
+
+    private final Map<String, Bitmap> mBitmaps;
+
+    private final long mMaxSize;
+
+    public ImageLoaderCache(ImageLoader imageLoader, long maxSize) {
+        mBitmaps = findBitmaps(imageLoader);
+        mMaxSize = maxSize;
+    }
+
+    @Override
+    public String getName() {
+        return "decoded-images";
+    }
+
+    @Override
+    public long getSize() {
+        if (mBitmaps == null) {
+            return 0;
+        }
+
+        long size = 0;
+        synchronized (mBitmaps) {
+            for (Bitmap bitmap : mBitmaps.values()) {
+                size += sizeOf(bitmap);
+            }
+        }
+
+        return size;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    @Override
+    public void trimToSize(long maxBytes) {
+        if (mBitmaps == null) {
+            return;
+        }
+
+        synchronized (mBitmaps) {
+            if (maxBytes <= 0) {
+                mBitmaps.clear();
+                return;
+            }
+
+            long size = getSize();
+
+            // The map is access ordered so iteration starts at the least recently used entry.
+            Iterator<Bitmap> iterator = mBitmaps.values().iterator();
+            while (size > maxBytes && iterator.hasNext()) {
+                size -= sizeOf(iterator.next());
+                iterator.remove();
+            }
+        }
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        return bitmap != null ? (long) bitmap.getRowBytes() * bitmap.getHeight() : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Bitmap> findBitmaps(ImageLoader imageLoader) {
+        try {
+            Field field = ImageLoader.class.getDeclaredField(BITMAPS_FIELD);
+            field.setAccessible(true);
+            return (Map<String, Bitmap>) field.get(imageLoader);
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to access the ImageLoader bitmap cache", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.plus.samples.photohunt.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.plus.samples.photohunt.Endpoints;
+import com.google.plus.samples.photohunt.HttpUtils;
+
+/**
+ * Fetches several thumbnails in one request when the network's latency is high, so that a
+ * screen of thumbnails costs one round trip rather than one each.
+ *
+ * The thumbnail URLs are posted to {@link Endpoints#thumbnailBatch()}, which answers with a
+ * {@code multipart/mixed} response holding one part per image, each naming its URL in a
+ * {@code Content-Location} header.  The parts are split into the {@link EncodedImageCache} and
+ * the {@link ThumbnailStore}, from which the image content handlers then decode them.  A content
+ * handler asked for an image which is part of a batch in flight waits for the batch rather than
+ * fetching the image again; images missing from the response are fetched one at a time.
+ *
+ * Latency is estimated from the time to the first byte of single image fetches.  Batching
+ * starts once it is above {@link #HIGH_LATENCY_MS}, and stops for the rest of the process if the
+ * server does not support it.
+ */
+public class ThumbnailBatchFetcher {
+
+    private static final String TAG = ThumbnailBatchFetcher.class.getSimpleName();
+
+    /** Time to first byte above which thumbnails are batched. */
+    private static final long HIGH_LATENCY_MS = 300;
+
+    /** Fetches measured before the latency estimate is trusted. */
+    private static final int MIN_LATENCY_SAMPLES = 3;
+
+    /** Weight of a new measurement in the latency estimate. */
+    private static final double SMOOTHING = 0.3;
+
+    /** Fewest uncached thumbnails worth a batch. */
+    private static final int MIN_BATCH_SIZE = 2;
+
+    /** Most thumbnails in one request, about a screen of rows. */
+    public static final int MAX_BATCH_SIZE = 10;
+
+    /** Longest a content handler waits for a batch before fetching an image itself. */
+    private static final long MAX_WAIT_MS = 15 * 1000;
+
+    private static final String MULTIPART_TYPE = "multipart/mixed";
+
+    private final EncodedImageCache mCache;
+
+    private final ThumbnailStore mStore;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "Thumbnail batch");
+                }
+            });
+
+    /** Images in batches which have not yet completed, by URL. */
+    private final Map<String, CountDownLatch> mPending = new HashMap<String, CountDownLatch>();
+
+    private final Object mLatencyLock = new Object();
+
+    private double mLatencyMs;
+
+    private int mLatencySamples;
+
+    private volatile boolean mUnsupported;
+
+    public ThumbnailBatchFetcher(EncodedImageCache cache, ThumbnailStore store) {
+        mCache = cache;
+        mStore = store;
+    }
+
+    /**
+     * Record the time to the first byte of a single image fetch.
+     */
+    public void recordLatency(long latencyMs) {
+        synchronized (mLatencyLock) {
+            mLatencyMs = mLatencySamples == 0
+                    ? latencyMs : mLatencyMs + SMOOTHING * (latencyMs - mLatencyMs);
+            mLatencySamples++;
+        }
+    }
+
+    /**
+     * @return true if thumbnails should currently be fetched in batches.
+     */
+    public boolean isEnabled() {
+        if (mUnsupported || !Endpoints.isConfigured()) {
+            return false;
+        }
+
+        synchronized (mLatencyLock) {
+            return mLatencySamples >= MIN_LATENCY_SAMPLES && mLatencyMs > HIGH_LATENCY_MS;
+        }
+    }
+
+    /**
+     * Fetch the thumbnails at {@code urls} which are not in memory in batches, if batching is
+     * enabled and there are enough of them.  Returns straight away, so it may be called from
+     * the main thread.
+     *
+     * @return true if the thumbnails are being fetched in batches, false if the caller should
+     *         fetch them itself.
+     */
+    public boolean fetch(List<String> urls) {
+        if (!isEnabled()) {
+            return false;
+        }
+
+        List<String> batch = new ArrayList<String>(MAX_BATCH_SIZE);
+        synchronized (mPending) {
+            for (String url : urls) {
+                if (url != null && !mPending.containsKey(url) && !batch.contains(url)
+                        && !mCache.contains(url)) {
+                    batch.add(url);
+                }
+            }
+
+            if (batch.size() < MIN_BATCH_SIZE) {
+                return false;
+            }
+
+            for (int start = 0; start < batch.size(); start += MAX_BATCH_SIZE) {
+                final List<String> chunk = new ArrayList<String>(batch.subList(start,
+                        Math.min(batch.size(), start + MAX_BATCH_SIZE)));
+                final CountDownLatch done = new CountDownLatch(1);
+                for (String url : chunk) {
+                    mPending.put(url, done);
+                }
+
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            fetchBatch(chunk);
+                        } finally {
+                            synchronized (mPending) {
+                                for (String url : chunk) {
+                                    mPending.remove(url);
+                                }
+                            }
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Wait for the batch holding {@code url} to complete, if there is one.  Called from the
+     * image content handlers before they fetch an image themselves.
+     */
+    public void awaitPending(String url) {
+        CountDownLatch done;
+        synchronized (mPending) {
+            done = mPending.get(url);
+        }
+
+        if (done != null) {
+            try {
+                done.await(MAX_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void fetchBatch(List<String> urls) {
+        // Images on disk are decoded from there; the store is only consulted here, off the main
+        // thread.
+        List<String> missing = new ArrayList<String>(urls.size());
+        for (String url : urls) {
+            if (!mStore.contains(url)) {
+                missing.add(url);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        HttpURLConnection conn = null;
+
+        try {
+            conn = (HttpURLConnection) new URL(Endpoints.thumbnailBatch()).openConnection();
+            conn.setRequestProperty("User-Agent", Endpoints.USER_AGENT);
+            conn.setRequestProperty("Accept", MULTIPART_TYPE);
+            conn.setRequestProperty("Content-Type", "application/json");
+            conn.setUseCaches(false);
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+
+            OutputStream out = conn.getOutputStream();
+            try {
+                out.write(new Gson().toJson(missing).getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+
+            int responseCode = conn.getResponseCode();
+            String boundary = getBoundary(conn.getContentType());
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND
+                    || responseCode == HttpURLConnection.HTTP_BAD_METHOD
+                    || responseCode == HttpURLConnection.HTTP_NOT_IMPLEMENTED
+                    || responseCode == HttpURLConnection.HTTP_OK && boundary == null) {
+                Log.i(TAG, "Thumbnail batches are not supported (" + responseCode + " "
+                        + conn.getContentType() + ")");
+                mUnsupported = true;
+                return;
+            } else if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.w(TAG, "Thumbnail batch failed: " + responseCode);
+                return;
+            }
+
+            InputStream in = conn.getInputStream();
+            byte[] body;
+            try {
+                body = HttpUtils.getContent(in).toByteArray();
+            } finally {
+                in.close();
+            }
+
+            int count = split(body, boundary, new HashSet<String>(missing));
+            Log.v(TAG, "Fetched " + count + " of " + missing.size()
+                    + " thumbnails in one batch");
+        } catch (IOException e) {
+            Log.w(TAG, "Thumbnail batch interrupted", e);
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Split a {@code multipart/mixed} body into the caches.  Only image parts of the
+     * {@code requested} URLs are kept, each once; any other image is left to be fetched alone.
+     *
+     * @return the number of images found.
+     */
+    private int split(byte[] body, String boundary, Set<String> requested) throws IOException {
+        byte[] delimiter = ("--" + boundary).getBytes("US-ASCII");
+        byte[] nextDelimiter = ("\r\n--" + boundary).getBytes("US-ASCII");
+        byte[] headerEnd = "\r\n\r\n".getBytes("US-ASCII");
+        int count = 0;
+
+        int position = indexOf(body, delimiter, 0);
+        while (position >= 0) {
+            position += delimiter.length;
+
+            // The final delimiter is followed by "--".
+            if (position + 1 < body.length && body[position] == '-'
+                    && body[position + 1] == '-') {
+                break;
+            }
+
+            int headersStart = indexOf(body, "\r\n".getBytes("US-ASCII"), position);
+            int headersEnd = headersStart >= 0 ? indexOf(body, headerEnd, headersStart) : -1;
+            int partEnd = headersEnd >= 0 ? indexOf(body, nextDelimiter, headersEnd) : -1;
+            if (partEnd < 0) {
+                throw new IOException("Truncated thumbnail batch");
+            }
+
+            String headers = new String(body, headersStart, headersEnd - headersStart, "UTF-8");
+            String url = getHeader(headers, "Content-Location");
+            String type = getHeader(headers, "Content-Type");
+            int dataStart = headersEnd + headerEnd.length;
+            if (url != null && type != null && type.toLowerCase(Locale.US).startsWith("image/")
+                    && partEnd > dataStart && requested.remove(url)) {
+                byte[] data = new byte[partEnd - dataStart];
+                System.arraycopy(body, dataStart, data, 0, data.length);
+                mStore.put(url, data);
+                mCache.put(url, data);
+                count++;
+            }
+
+            position = partEnd + 2;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the boundary of a {@code multipart/mixed} content type, or null if
+     *         {@code contentType} is not one.
+     */
+    private static String getBoundary(String contentType) {
+        if (contentType == null
+                || !contentType.toLowerCase(Locale.US).startsWith(MULTIPART_TYPE)) {
+            return null;
+        }
+
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.toLowerCase(Locale.US).startsWith("boundary=")) {
+                String boundary = parameter.substring("boundary=".length());
+                if (boundary.length() > 1 && boundary.startsWith("\"")
+                        && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary.length() > 0 ? boundary : null;
+            }
+        }
+
+        return null;
+    }
+
+    private static String getHeader(String headers, String name) {
+        for (String line : headers.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+
+        return null;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
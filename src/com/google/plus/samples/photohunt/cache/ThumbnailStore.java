@@ -0,0 +1,762 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.plus.samples.photohunt.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Disk cache of encoded image bytes keyed by URL, packed into a few large files.
+ *
+ * Images are appended to segment files of equal size, so storing thousands of thumbnails
+ * creates a handful of files rather than one file each.  A fixed size hash table in a
+ * memory-mapped index file maps a hash of each URL onto the segment, offset and length of its
+ * record, so a lookup costs no system call and a read costs one.
+ *
+ * When the newest segment is full, or holds its share of the index, a new one is started, and
+ * once there are more than {@link #SEGMENT_COUNT} the oldest is compacted: images read since
+ * they were written there are copied to the newest segment, the others are evicted, and the
+ * old file is deleted.
+ *
+ * Every record carries its URL and a checksum, which are verified on each read, so a record
+ * torn by a crash or an index entry which points at the wrong data reads as a miss.  An index
+ * which is missing or was written by another version is rebuilt by scanning the segments,
+ * which are truncated at the first damaged record.
+ *
+ * The lock is only held to look images up in the index and to write, so reads of the record
+ * bytes on the image loader's threads run in parallel.
+ *
+ * The store is opened on first use, so it must be first used off the main thread.
+ */
+public class ThumbnailStore {
+
+    private static final String TAG = ThumbnailStore.class.getSimpleName();
+
+    private static final String INDEX_FILE = "index";
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    /** Number of full segments kept, not counting the one being written. */
+    private static final int SEGMENT_COUNT = 4;
+
+    /** Smallest image size the index is sized for; smaller images may fill it early. */
+    private static final int MIN_EXPECTED_ENTRY_SIZE = 4 * 1024;
+
+    private static final float MAX_LOAD = 0.75f;
+
+    private static final int INDEX_MAGIC = 0x50484958;
+
+    private static final int INDEX_VERSION = 2;
+
+    /** Magic, version and capacity. */
+    private static final int INDEX_HEADER_SIZE = 12;
+
+    /** URL hash, segment, offset, length and whether the image was read since it was written. */
+    private static final int SLOT_SIZE = 24;
+
+    private static final int SLOT_SEGMENT = 8;
+
+    private static final int SLOT_OFFSET = 12;
+
+    private static final int SLOT_LENGTH = 16;
+
+    private static final int SLOT_ACCESSED = 20;
+
+    private static final int RECORD_MAGIC = 0x50485452;
+
+    /** Magic, URL length, data length and the checksum of the URL and data. */
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private final File mDirectory;
+
+    private final long mSegmentSize;
+
+    /** Number of index slots, a power of two. */
+    private final int mCapacity;
+
+    /** Most records written to one segment, so that the index cannot fill up. */
+    private final int mMaxSegmentEntries;
+
+    private MappedByteBuffer mIndex;
+
+    /** Open segment files by number; the last is the one being written. */
+    private final TreeMap<Integer, RandomAccessFile> mSegments =
+            new TreeMap<Integer, RandomAccessFile>();
+
+    private int mCount;
+
+    /** Records written to the newest segment. */
+    private int mSegmentEntries;
+
+    private boolean mOpened;
+
+    /** Set if the store could not be opened, after which it caches nothing. */
+    private boolean mFailed;
+
+    private long mHitCount;
+
+    private long mMissCount;
+
+    private long mCorruptCount;
+
+    private long mEvictionCount;
+
+    /**
+     * @param directory the directory which holds the store's files.
+     * @param maxSize the approximate maximum number of bytes to hold.
+     */
+    public ThumbnailStore(File directory, long maxSize) {
+        if (maxSize < SEGMENT_COUNT * MIN_EXPECTED_ENTRY_SIZE) {
+            throw new IllegalArgumentException("Store size is too small");
+        }
+
+        mDirectory = directory;
+        mSegmentSize = maxSize / SEGMENT_COUNT;
+
+        int capacity = 1;
+        while (capacity * MAX_LOAD < maxSize / MIN_EXPECTED_ENTRY_SIZE) {
+            capacity <<= 1;
+        }
+        mCapacity = capacity;
+        mMaxSegmentEntries = (int) (capacity * MAX_LOAD) / (SEGMENT_COUNT + 1);
+    }
+
+    /**
+     * @param url the URL the image was fetched from.
+     * @return the encoded image bytes, or null if they are not stored.
+     */
+    public byte[] get(String url) {
+        long hash = hash(url);
+
+        // A second attempt follows an image which a compaction moved while it was being read.
+        for (int attempt = 0; attempt < 2; attempt++) {
+            int number;
+            int offset;
+            int length;
+            RandomAccessFile segment;
+
+            synchronized (this) {
+                if (!open()) {
+                    return null;
+                }
+
+                int slot = find(hash);
+                if (slot < 0) {
+                    mMissCount++;
+                    return null;
+                }
+
+                int position = getSlotPosition(slot);
+                number = mIndex.getInt(position + SLOT_SEGMENT);
+                offset = mIndex.getInt(position + SLOT_OFFSET);
+                length = mIndex.getInt(position + SLOT_LENGTH);
+                segment = mSegments.get(number);
+            }
+
+            // Positional reads of a channel may run concurrently, so the record is read without
+            // the lock.  A compaction may close the segment meanwhile, which fails the read.
+            Record record = null;
+            IOException error = null;
+            try {
+                if (segment != null && offset >= 0 && length >= 0) {
+                    record = readRecord(segment.getChannel(), offset);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            boolean valid = record != null && record.data.length == length
+                    && url.equals(record.url);
+
+            synchronized (this) {
+                int slot = mOpened ? find(hash) : -1;
+                int position = getSlotPosition(slot);
+                boolean moved = slot < 0 || mIndex.getInt(position + SLOT_SEGMENT) != number
+                        || mIndex.getInt(position + SLOT_OFFSET) != offset;
+
+                if (valid) {
+                    // Give the image a second chance when its segment is compacted.
+                    if (slot >= 0) {
+                        mIndex.putInt(position + SLOT_ACCESSED, 1);
+                    }
+
+                    mHitCount++;
+                    return record.data;
+                } else if (!moved) {
+                    if (error != null) {
+                        Log.w(TAG, "Unable to read segment " + number, error);
+                    }
+
+                    mCorruptCount++;
+                    mMissCount++;
+                    remove(slot);
+                    return null;
+                }
+            }
+        }
+
+        synchronized (this) {
+            mMissCount++;
+        }
+        return null;
+    }
+
+    /**
+     * Check whether an image is stored without reading it or affecting its eviction.
+     *
+     * @param url the URL the image was fetched from.
+     * @return true if the image is probably stored; a damaged record is only found when read.
+     */
+    public synchronized boolean contains(String url) {
+        return open() && find(hash(url)) >= 0;
+    }
+
+    /**
+     * Drop an image from the index, for example because its bytes could not be decoded.  The
+     * record itself is reclaimed when its segment is compacted.
+     *
+     * @param url the URL the image was fetched from.
+     */
+    public synchronized void remove(String url) {
+        if (!open()) {
+            return;
+        }
+
+        int slot = find(hash(url));
+        if (slot >= 0) {
+            remove(slot);
+        }
+    }
+
+    /**
+     * Store the encoded bytes of an image, replacing any earlier image for the same URL.
+     *
+     * @param url the URL the image was fetched from.
+     * @param data the encoded image.
+     */
+    public synchronized void put(String url, byte[] data) {
+        if (url == null || data == null || !open()) {
+            return;
+        }
+
+        try {
+            byte[] urlBytes = url.getBytes("UTF-8");
+            if (RECORD_HEADER_SIZE + urlBytes.length + data.length > mSegmentSize) {
+                return;
+            }
+
+            long hash = hash(url);
+            append(hash, urlBytes, data, find(hash));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to store " + url, e);
+        }
+    }
+
+    /**
+     * Append a record to the segment being written, starting a new segment if it is full,
+     * and point the index at it.
+     *
+     * @param slot the index slot of an earlier image with the same hash, or -1.
+     * @return false if there was no room.
+     */
+    private boolean append(long hash, byte[] urlBytes, byte[] data, int slot)
+            throws IOException {
+        long recordSize = RECORD_HEADER_SIZE + urlBytes.length + data.length;
+        RandomAccessFile segment = mSegments.get(mSegments.lastKey());
+        if (segment.length() + recordSize > mSegmentSize
+                || mSegmentEntries >= mMaxSegmentEntries) {
+            startSegment();
+            segment = mSegments.get(mSegments.lastKey());
+
+            // Compaction may have moved or evicted the earlier image.
+            slot = find(hash);
+            if (segment.length() + recordSize > mSegmentSize) {
+                return false;
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(urlBytes);
+        crc.update(data);
+
+        ByteBuffer record = ByteBuffer.allocate((int) recordSize);
+        record.putInt(RECORD_MAGIC);
+        record.putInt(urlBytes.length);
+        record.putInt(data.length);
+        record.putInt((int) crc.getValue());
+        record.put(urlBytes);
+        record.put(data);
+        record.flip();
+
+        long offset = segment.length();
+        FileChannel channel = segment.getChannel();
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+
+        if (slot < 0) {
+            if (mCount + 1 > mCapacity * MAX_LOAD) {
+                return false;
+            }
+            slot = insert(hash);
+        }
+
+        mSegmentEntries++;
+        writeSlot(slot, hash, mSegments.lastKey(), (int) offset, data.length, false);
+        return true;
+    }
+
+    /**
+     * Read and verify the image at {@code slot}, dropping it from the index if it is damaged.
+     *
+     * @param url the URL the image is expected to have, or null to accept any URL.
+     * @return the record, or null if it is damaged.
+     */
+    private Record read(int slot, String url) {
+        int position = getSlotPosition(slot);
+        int number = mIndex.getInt(position + SLOT_SEGMENT);
+        int offset = mIndex.getInt(position + SLOT_OFFSET);
+        int length = mIndex.getInt(position + SLOT_LENGTH);
+        RandomAccessFile segment = mSegments.get(number);
+
+        try {
+            if (segment != null && offset >= 0 && length >= 0) {
+                Record record = readRecord(segment.getChannel(), offset);
+                if (record != null && record.data.length == length
+                        && (url == null || url.equals(record.url))) {
+                    return record;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read segment " + number, e);
+        }
+
+        mCorruptCount++;
+        remove(slot);
+        return null;
+    }
+
+    /**
+     * @return the verified record at {@code offset}, or null if there is no intact record.
+     */
+    private static Record readRecord(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        if (!readFully(channel, header, offset) || header.getInt(0) != RECORD_MAGIC) {
+            return null;
+        }
+
+        int urlLength = header.getInt(4);
+        int dataLength = header.getInt(8);
+        long remaining = channel.size() - offset - RECORD_HEADER_SIZE;
+        if (urlLength < 0 || dataLength < 0 || (long) urlLength + dataLength > remaining) {
+            return null;
+        }
+
+        byte[] urlBytes = new byte[urlLength];
+        byte[] data = new byte[dataLength];
+        if (!readFully(channel, ByteBuffer.wrap(urlBytes), offset + RECORD_HEADER_SIZE)
+                || !readFully(channel, ByteBuffer.wrap(data),
+                        offset + RECORD_HEADER_SIZE + urlLength)) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(urlBytes);
+        crc.update(data);
+        if ((int) crc.getValue() != header.getInt(12)) {
+            return null;
+        }
+
+        return new Record(new String(urlBytes, "UTF-8"), data);
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long offset)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Start a new segment, compacting the oldest if there are then too many.
+     */
+    private void startSegment() throws IOException {
+        int number = mSegments.isEmpty() ? 1 : mSegments.lastKey() + 1;
+        mSegments.put(number, openSegment(number));
+        mSegmentEntries = 0;
+
+        while (mSegments.size() > SEGMENT_COUNT + 1) {
+            compact(mSegments.firstKey());
+        }
+    }
+
+    /**
+     * Copy the images in segment {@code number} which have been read since they were written
+     * to the newest segment, evict the rest, and delete the segment.
+     */
+    private void compact(int number) throws IOException {
+        List<Long> hashes = new ArrayList<Long>();
+        for (int slot = 0; slot < mCapacity; slot++) {
+            int position = getSlotPosition(slot);
+            if (getSlotHash(slot) != 0 && mIndex.getInt(position + SLOT_SEGMENT) == number) {
+                hashes.add(getSlotHash(slot));
+            }
+        }
+
+        int retained = 0;
+        for (long hash : hashes) {
+            int slot = find(hash);
+            if (slot < 0) {
+                continue;
+            }
+
+            boolean accessed = mIndex.getInt(getSlotPosition(slot) + SLOT_ACCESSED) != 0;
+            Record record = accessed ? read(slot, null) : null;
+            slot = find(hash);
+
+            if (record != null && slot >= 0 && copy(slot, hash, record)) {
+                retained++;
+            } else if (slot >= 0) {
+                remove(slot);
+                mEvictionCount++;
+            }
+        }
+
+        RandomAccessFile segment = mSegments.remove(number);
+        segment.close();
+        if (!getSegmentFile(number).delete()) {
+            Log.w(TAG, "Unable to delete segment " + number);
+        }
+
+        Log.v(TAG, "Compacted segment " + number + ", kept " + retained + " of "
+                + hashes.size() + " images");
+    }
+
+    /**
+     * Copy {@code record}, the image at {@code slot}, to the newest segment if there is room.
+     * Never starts a segment, so it is safe to call while compacting.
+     */
+    private boolean copy(int slot, long hash, Record record) throws IOException {
+        RandomAccessFile segment = mSegments.get(mSegments.lastKey());
+        byte[] urlBytes = record.url.getBytes("UTF-8");
+        if (segment.length() + RECORD_HEADER_SIZE + urlBytes.length + record.data.length
+                > mSegmentSize || mSegmentEntries >= mMaxSegmentEntries) {
+            return false;
+        }
+
+        return append(hash, urlBytes, record.data, slot);
+    }
+
+    /**
+     * Open the index and segments, rebuilding the index if it cannot be used.
+     *
+     * @return false if the store is unusable.
+     */
+    private boolean open() {
+        if (mOpened || mFailed) {
+            return mOpened;
+        }
+
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Unable to create " + mDirectory);
+            }
+
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.startsWith(SEGMENT_PREFIX)) {
+                        try {
+                            int number = Integer.parseInt(name.substring(
+                                    SEGMENT_PREFIX.length()));
+                            mSegments.put(number, openSegment(number));
+                        } catch (NumberFormatException e) {
+                            Log.w(TAG, "Ignoring " + file);
+                        }
+                    }
+                }
+            }
+
+            boolean valid = mapIndex();
+            if (mSegments.isEmpty()) {
+                mSegments.put(1, openSegment(1));
+            }
+
+            if (valid) {
+                for (int slot = 0; slot < mCapacity; slot++) {
+                    if (getSlotHash(slot) != 0) {
+                        mCount++;
+                    }
+                }
+            } else {
+                rebuild();
+            }
+
+            int newest = mSegments.lastKey();
+            for (int slot = 0; slot < mCapacity; slot++) {
+                if (getSlotHash(slot) != 0
+                        && mIndex.getInt(getSlotPosition(slot) + SLOT_SEGMENT) == newest) {
+                    mSegmentEntries++;
+                }
+            }
+
+            mOpened = true;
+
+            // A crash during compaction can leave an extra segment behind.
+            while (mSegments.size() > SEGMENT_COUNT + 1) {
+                compact(mSegments.firstKey());
+            }
+
+            Log.v(TAG, "Opened " + mCount + " images in " + mSegments.size() + " segments");
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the thumbnail store", e);
+            close();
+            mFailed = true;
+            mOpened = false;
+        }
+
+        return mOpened;
+    }
+
+    /**
+     * Map the index file, creating it if needed.
+     *
+     * @return true if it holds a usable index, false if it is new or has been reset.
+     */
+    private boolean mapIndex() throws IOException {
+        long size = INDEX_HEADER_SIZE + (long) mCapacity * SLOT_SIZE;
+        RandomAccessFile file = new RandomAccessFile(new File(mDirectory, INDEX_FILE), "rw");
+
+        try {
+            boolean sized = file.length() == size;
+            file.setLength(size);
+            mIndex = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (sized && mIndex.getInt(0) == INDEX_MAGIC && mIndex.getInt(4) == INDEX_VERSION
+                    && mIndex.getInt(8) == mCapacity) {
+                return true;
+            }
+        } finally {
+            // The mapping stays valid once the file is closed.
+            file.close();
+        }
+
+        // Invalidate the header first so that a crash while resetting forces another rebuild.
+        mIndex.putInt(0, 0);
+        for (int position = INDEX_HEADER_SIZE; position < size; position += 4) {
+            mIndex.putInt(position, 0);
+        }
+        return false;
+    }
+
+    /**
+     * Rebuild the index from the segments, oldest first so that later copies of an image win,
+     * truncating each segment at its first damaged record.
+     */
+    private void rebuild() throws IOException {
+        int records = 0;
+
+        for (Map.Entry<Integer, RandomAccessFile> entry : mSegments.entrySet()) {
+            int number = entry.getKey();
+            FileChannel channel = entry.getValue().getChannel();
+            long offset = 0;
+
+            while (offset < channel.size()) {
+                Record record = readRecord(channel, offset);
+                if (record == null) {
+                    Log.w(TAG, "Truncating segment " + number + " at " + offset);
+                    entry.getValue().setLength(offset);
+                    break;
+                }
+
+                long hash = hash(record.url);
+                int slot = find(hash);
+                if (slot < 0) {
+                    if (mCount + 1 > mCapacity * MAX_LOAD) {
+                        break;
+                    }
+                    slot = insert(hash);
+                }
+
+                writeSlot(slot, hash, number, (int) offset, record.data.length, false);
+                offset += RECORD_HEADER_SIZE + record.data.length
+                        + record.url.getBytes("UTF-8").length;
+                records++;
+            }
+        }
+
+        mIndex.putInt(4, INDEX_VERSION);
+        mIndex.putInt(8, mCapacity);
+        mIndex.putInt(0, INDEX_MAGIC);
+        Log.i(TAG, "Rebuilt index from " + records + " records");
+    }
+
+    private void close() {
+        for (RandomAccessFile segment : mSegments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+
+        mSegments.clear();
+        mIndex = null;
+        mCount = 0;
+    }
+
+    private RandomAccessFile openSegment(int number) throws IOException {
+        return new RandomAccessFile(getSegmentFile(number), "rw");
+    }
+
+    private File getSegmentFile(int number) {
+        return new File(mDirectory, SEGMENT_PREFIX + number);
+    }
+
+    /**
+     * @return the slot holding {@code hash}, or -1 if there is none.
+     */
+    private int find(long hash) {
+        int mask = mCapacity - 1;
+        for (int slot = getHome(hash); ; slot = (slot + 1) & mask) {
+            long slotHash = getSlotHash(slot);
+            if (slotHash == hash) {
+                return slot;
+            } else if (slotHash == 0) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @return a free slot for {@code hash}, which must not be in the index already.
+     */
+    private int insert(long hash) {
+        int mask = mCapacity - 1;
+        int slot = getHome(hash);
+        while (getSlotHash(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+
+        mCount++;
+        return slot;
+    }
+
+    /**
+     * Empty {@code slot}, shifting back the slots which follow it so that lookups, which stop
+     * at the first empty slot, still find them.
+     */
+    private void remove(int slot) {
+        int mask = mCapacity - 1;
+        int empty = slot;
+
+        for (int next = (slot + 1) & mask; getSlotHash(next) != 0; next = (next + 1) & mask) {
+            int home = getHome(getSlotHash(next));
+            boolean reachable = empty <= next
+                    ? home > empty && home <= next
+                    : home > empty || home <= next;
+
+            if (!reachable) {
+                int from = getSlotPosition(next);
+                int to = getSlotPosition(empty);
+                for (int i = 0; i < SLOT_SIZE; i += 4) {
+                    mIndex.putInt(to + i, mIndex.getInt(from + i));
+                }
+                empty = next;
+            }
+        }
+
+        mIndex.putLong(getSlotPosition(empty), 0);
+        mCount--;
+    }
+
+    private void writeSlot(int slot, long hash, int segment, int offset, int length,
+            boolean accessed) {
+        int position = getSlotPosition(slot);
+
+        // The hash is written last so that a lookup never sees a half written slot for it.
+        mIndex.putInt(position + SLOT_SEGMENT, segment);
+        mIndex.putInt(position + SLOT_OFFSET, offset);
+        mIndex.putInt(position + SLOT_LENGTH, length);
+        mIndex.putInt(position + SLOT_ACCESSED, accessed ? 1 : 0);
+        mIndex.putLong(position, hash);
+    }
+
+    private long getSlotHash(int slot) {
+        return mIndex.getLong(getSlotPosition(slot));
+    }
+
+    private static int getSlotPosition(int slot) {
+        return INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private int getHome(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & (mCapacity - 1);
+    }
+
+    /**
+     * @return the 64-bit FNV-1a hash of {@code url}, which is never 0 as that marks an empty
+     *         slot.
+     */
+    private static long hash(String url) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); i++) {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash != 0 ? hash : 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = mHitCount + mMissCount;
+        int hitPercent = lookups != 0 ? (int) (100 * mHitCount / lookups) : 0;
+
+        return String.format("ThumbnailStore[segments=%d,entries=%d,hits=%d,misses=%d,"
+                + "corrupt=%d,evictions=%d,hitRate=%d%%]", mSegments.size(), mCount,
+                mHitCount, mMissCount, mCorruptCount, mEvictionCount, hitPercent);
+    }
+
+    private static class Record {
+
+        final String url;
+
+        final byte[] data;
+
+        Record(String url, byte[] data) {
+            this.url = url;
+            this.data = data;
+        }
+    }
+}
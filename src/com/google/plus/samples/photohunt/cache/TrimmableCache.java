@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.cache;
+
+/**
+ * An in-memory cache which can release memory when the system is running low.
+ *
+ * Caches are registered with {@link com.google.plus.samples.photohunt.app.PhotoHuntApp} which
+ * trims every registered cache in response to trim-memory and low-memory callbacks.
+ */
+public interface TrimmableCache {
+
+    /**
+     * @return the name used to identify this cache when reporting its footprint.
+     */
+    String getName();
+
+    /**
+     * @return the approximate number of bytes currently held by this cache.
+     */
+    long getSize();
+
+    /**
+     * @return the maximum number of bytes this cache will hold.
+     */
+    long getMaxSize();
+
+    /**
+     * Evict entries, least recently used first, until the cache holds at most
+     * {@code maxBytes} bytes.
+     *
+     * @param maxBytes the number of bytes to retain; 0 empties the cache.
+     */
+    void trimToSize(long maxBytes);
+}
@@ -42,7 +42,7 @@ public class PhotoClient {
      * @return The {@code AsyncTask} executed to perform the fetch.
      */
     public void getThemes(int startIndex, int count, FetchCallback<List<Theme>> callback) {
-        String url = String.format(Endpoints.THEME_LIST, startIndex, count);
+        String url = Endpoints.themeList(startIndex, count);
         FetchJsonTask<List<Theme>> task = new FetchJsonTask<List<Theme>>(url, callback){
             { mReturnType = new TypeToken<ArrayList<Theme>>() {}.getType(); }
         };
@@ -84,7 +84,7 @@ public class PhotoClient {
      * @param callback The callback used to deliver the result.
      */
     public void vote(Long photoId, final FetchCallback<Photo> callback) {
-        final String url = Endpoints.PHOTO_VOTE;
+        final String url = Endpoints.photoVote();
         final byte[] voteJson = String.format(VOTE_JSON, photoId).getBytes();
         
         FetchJsonTask<Photo> task = new FetchJsonTask<Photo>(url, callback, Photo.class) {
@@ -101,7 +101,7 @@ public class PhotoClient {
      * @param callback The callback used to deliver the result.
      */
     public void delete(Long photoId, final FetchCallback<Void> callback) {
-        String url = String.format(Endpoints.PHOTO, photoId);
+        String url = Endpoints.photo(photoId);
         FetchJsonTask<Void> task = new FetchJsonTask<Void>(url, callback, Void.class) {
             { mRequestMethod = "DELETE"; }
         };
@@ -117,7 +117,7 @@ public class PhotoClient {
      * @param callback The callback used to deliver the result.
      */
     public void disconnectAccount(final FetchCallback<Void> callback) {
-        FetchJsonTask<Void> task = new FetchJsonTask<Void>(Endpoints.API_DISCONNECT, callback, Void.class) {
+        FetchJsonTask<Void> task = new FetchJsonTask<Void>(Endpoints.disconnect(), callback, Void.class) {
             { mRequestMethod = "POST"; }
         };
 
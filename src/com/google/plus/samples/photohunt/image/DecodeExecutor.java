@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.image;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs CPU bound image work, such as decoding and JPEG compression, on a pool of threads sized
+ * to the number of cores on the device.
+ *
+ * Network I/O stays on the threads of the caller (the ImageLoader task pool or an AsyncTask),
+ * which block while their decode runs here, so a slow network never holds a decode thread and
+ * a burst of image loads never oversubscribes the CPU.
+ *
+ * Work submitted with {@link #PRIORITY_VISIBLE} runs before {@link #PRIORITY_BACKGROUND} work and
+ * in last-in first-out order, so the row most recently bound by a scrolling list is decoded
+ * first.  Background work runs in submission order.
+ */
+public class DecodeExecutor {
+
+    private static final String TAG = DecodeExecutor.class.getSimpleName();
+
+    /** Priority for images about to be displayed; runs newest first. */
+    public static final int PRIORITY_VISIBLE = 0;
+
+    /** Priority for work the user is not waiting to see, such as uploads; runs oldest first. */
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /** Leave a core free for the UI thread on multi-core devices. */
+    private static final int POOL_SIZE = Math.max(1, Math.min(CPU_COUNT - 1, 4));
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static DecodeExecutor sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private long mDecodeCount;
+
+    private long mTotalDecodeMs;
+
+    private long mTotalQueueMs;
+
+    private long mMaxDecodeMs;
+
+    /**
+     * @return the shared DecodeExecutor.
+     */
+    public static synchronized DecodeExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new DecodeExecutor(POOL_SIZE);
+        }
+
+        return sInstance;
+    }
+
+    DecodeExecutor(int poolSize) {
+        mExecutor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new DecodeThreadFactory());
+    }
+
+    /**
+     * Run {@code work} on a decode thread and wait for the result.
+     *
+     * @param name identifies the work when logging its timing.
+     * @param priority {@link #PRIORITY_VISIBLE} or {@link #PRIORITY_BACKGROUND}.
+     * @param work the decode to run.
+     * @return the result of {@code work}.
+     * @throws IOException if {@code work} throws a checked exception or the caller is
+     *         interrupted while waiting.  Unchecked exceptions and errors, including
+     *         {@link OutOfMemoryError}, are rethrown as is.
+     */
+    public <T> T execute(String name, int priority, Callable<T> work) throws IOException {
+        DecodeTask<T> task = new DecodeTask<T>(name, priority, mSequence.getAndIncrement(), work);
+        mExecutor.execute(task);
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding " + name);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            IOException ioException = new IOException("Unable to decode " + name);
+            ioException.initCause(cause);
+            throw ioException;
+        }
+    }
+
+    private synchronized void recordTiming(String name, long queueMs, long decodeMs) {
+        mDecodeCount++;
+        mTotalQueueMs += queueMs;
+        mTotalDecodeMs += decodeMs;
+        mMaxDecodeMs = Math.max(mMaxDecodeMs, decodeMs);
+
+        Log.v(TAG, "Decoded " + name + " in " + decodeMs + "ms after waiting " + queueMs + "ms");
+    }
+
+    public int getPoolSize() {
+        return mExecutor.getCorePoolSize();
+    }
+
+    public synchronized long getDecodeCount() {
+        return mDecodeCount;
+    }
+
+    public synchronized long getAverageDecodeMs() {
+        return mDecodeCount != 0 ? mTotalDecodeMs / mDecodeCount : 0;
+    }
+
+    public synchronized long getAverageQueueMs() {
+        return mDecodeCount != 0 ? mTotalQueueMs / mDecodeCount : 0;
+    }
+
+    public synchronized long getMaxDecodeMs() {
+        return mMaxDecodeMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DecodeExecutor[threads=%d,decodes=%d,avgDecodeMs=%d,"
+                + "avgQueueMs=%d,maxDecodeMs=%d]", getPoolSize(), mDecodeCount,
+                getAverageDecodeMs(), getAverageQueueMs(), mMaxDecodeMs);
+    }
+
+    private class DecodeTask<T> extends FutureTask<T> implements Comparable<DecodeTask<?>> {
+
+        private final String mName;
+
+        private final int mPriority;
+
+        private final long mSequence;
+
+        private final long mSubmitTime = SystemClock.uptimeMillis();
+
+        public DecodeTask(String name, int priority, long sequence, Callable<T> work) {
+            super(work);
+            mName = name;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled()) {
+                return;
+            }
+
+            long start = SystemClock.uptimeMillis();
+            super.run();
+            recordTiming(mName, start - mSubmitTime, SystemClock.uptimeMillis() - start);
+        }
+
+        @Override
+        public int compareTo(DecodeTask<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            } else if (mSequence == other.mSequence) {
+                return 0;
+            }
+
+            boolean earlier = mSequence < other.mSequence;
+            if (mPriority == PRIORITY_VISIBLE) {
+                // Newest first.
+                return earlier ? 1 : -1;
+            } else {
+                return earlier ? -1 : 1;
+            }
+        }
+    }
+
+    private static class DecodeThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "Decode #" + mCount.getAndIncrement());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.image;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the orientation tag from the EXIF data of a JPEG stream.
+ *
+ * {@link android.media.ExifInterface} only reads files, which content providers need not have,
+ * so this walks the JPEG markers up to the APP1 segment and reads the tag from its first IFD.
+ */
+public class ExifOrientation {
+
+    private static final int MARKER_SOI = 0xffd8;
+
+    private static final int MARKER_APP1 = 0xffe1;
+
+    private static final int MARKER_SOS = 0xffda;
+
+    private static final int EXIF_HEADER = 0x45786966; // "Exif"
+
+    private static final int TAG_ORIENTATION = 0x0112;
+
+    /**
+     * Read the orientation of the JPEG in {@code in}, which is left partially consumed.
+     *
+     * @return the clockwise rotation in degrees which makes the image upright; 0 if the stream
+     *         is not a JPEG or has no orientation tag.
+     */
+    public static int read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+
+        try {
+            if (data.readUnsignedShort() != MARKER_SOI) {
+                return 0;
+            }
+
+            while (true) {
+                int marker = data.readUnsignedShort();
+                if ((marker & 0xff00) != 0xff00 || marker == MARKER_SOS) {
+                    return 0;
+                }
+
+                int length = data.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return 0;
+                }
+
+                if (marker == MARKER_APP1) {
+                    byte[] segment = new byte[length];
+                    data.readFully(segment);
+
+                    if (length >= 6 && getInt(segment, 0, false) == EXIF_HEADER) {
+                        return toDegrees(readOrientation(segment, 6));
+                    }
+                } else {
+                    skipFully(data, length);
+                }
+            }
+        } catch (EOFException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the orientation tag in the TIFF structure starting at {@code tiff}, or 0.
+     */
+    private static int readOrientation(byte[] segment, int tiff) {
+        if (segment.length < tiff + 8) {
+            return 0;
+        }
+
+        boolean littleEndian;
+        if (segment[tiff] == 'I' && segment[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (segment[tiff] == 'M' && segment[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return 0;
+        }
+
+        int ifd = tiff + getInt(segment, tiff + 4, littleEndian);
+        if (ifd < tiff || ifd + 2 > segment.length) {
+            return 0;
+        }
+
+        int entries = getShort(segment, ifd, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > segment.length) {
+                return 0;
+            }
+
+            if (getShort(segment, entry, littleEndian) == TAG_ORIENTATION) {
+                return getShort(segment, entry + 8, littleEndian);
+            }
+        }
+
+        return 0;
+    }
+
+    private static int toDegrees(int orientation) {
+        switch (orientation) {
+            case 6:
+                return 90;
+            case 3:
+                return 180;
+            case 8:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    private static int getShort(byte[] bytes, int offset, boolean littleEndian) {
+        int b0 = bytes[offset] & 0xff;
+        int b1 = bytes[offset + 1] & 0xff;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static int getInt(byte[] bytes, int offset, boolean littleEndian) {
+        int high = getShort(bytes, offset + (littleEndian ? 2 : 0), littleEndian);
+        int low = getShort(bytes, offset + (littleEndian ? 0 : 2), littleEndian);
+        return (high << 16) | low;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.image;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.plus.samples.photohunt.HttpUtils;
+
+/**
+ * Decodes a photo for upload, scaled so that its long edge is at most a target size and
+ * rotated upright according to its EXIF orientation, using a bounded amount of memory.
+ *
+ * The source is decoded with the largest power of two sample size which keeps it at or above
+ * the target size.  On API 10 and later it is decoded in horizontal strips, each of which is
+ * scaled and rotated straight into the output bitmap, so the only full-size allocation is the
+ * output itself.  Earlier releases, and formats the region decoder does not support such as
+ * GIF, BMP and WebP, decode the whole source, sampled down to the target size, and draw it into
+ * the output.
+ */
+public class PhotoTranscoder {
+
+    private static final String TAG = PhotoTranscoder.class.getSimpleName();
+
+    /** Default long edge, in pixels, of transcoded photos. */
+    public static final int DEFAULT_TARGET_LONG_EDGE = 2048;
+
+    /** Height in decoded pixels of each strip decoded from the source. */
+    private static final int STRIP_HEIGHT = 128;
+
+    /**
+     * Opens the photo being transcoded, which is read several times.
+     */
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private final int mTargetLongEdge;
+
+    private int mSourceWidth;
+
+    private int mSourceHeight;
+
+    private int mSampleSize;
+
+    private long mTranscodeMs;
+
+    private long mPeakHeapBytes;
+
+    public PhotoTranscoder(int targetLongEdge) {
+        mTargetLongEdge = targetLongEdge;
+    }
+
+    /**
+     * Decode the JPEG opened by {@code source}.
+     *
+     * @return an upright bitmap whose long edge is at most the target size.
+     * @throws IOException if the source could not be read or decoded.
+     */
+    public Bitmap transcode(Source source) throws IOException {
+        long start = SystemClock.uptimeMillis();
+
+        BitmapFactory.Options bounds = readBounds(source);
+
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Unable to read image: " + source);
+        }
+
+        mSourceWidth = bounds.outWidth;
+        mSourceHeight = bounds.outHeight;
+
+        int longEdge = Math.max(mSourceWidth, mSourceHeight);
+        float scale = Math.min(1f, (float) mTargetLongEdge / longEdge);
+
+        // Maps source pixels to output pixels: scale, rotate upright, then move back into view.
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postRotate(getRotation(source));
+        RectF mapped = new RectF(0, 0, mSourceWidth, mSourceHeight);
+        matrix.mapRect(mapped);
+        matrix.postTranslate(-mapped.left, -mapped.top);
+
+        Bitmap result = Bitmap.createBitmap(Math.max(1, Math.round(mapped.width())),
+                Math.max(1, Math.round(mapped.height())), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(result);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        try {
+            boolean drawn = false;
+            if (android.os.Build.VERSION.SDK_INT >= 10) {
+                mSampleSize = computeSampleSize(longEdge, mTargetLongEdge, false);
+                drawn = new RegionStripDrawer().draw(source, matrix, canvas, paint);
+            }
+
+            if (!drawn) {
+                mSampleSize = computeSampleSize(longEdge, mTargetLongEdge, true);
+                drawSampled(source, matrix, canvas, paint);
+            }
+        } catch (IOException e) {
+            result.recycle();
+            throw e;
+        }
+
+        mTranscodeMs = SystemClock.uptimeMillis() - start;
+        return result;
+    }
+
+    public int getSourceWidth() {
+        return mSourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return mSourceHeight;
+    }
+
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+
+    /**
+     * @return the time taken by the last call to {@link #transcode(Source)}.
+     */
+    public long getTranscodeMs() {
+        return mTranscodeMs;
+    }
+
+    /**
+     * @return the highest Java plus native heap usage sampled while transcoding.
+     */
+    public long getPeakHeapBytes() {
+        return mPeakHeapBytes;
+    }
+
+    /**
+     * @param atMostTarget if true, sample the source down to at most {@code target} pixels;
+     *        otherwise sample it as far as possible while keeping at least {@code target}.
+     * @return a power of two sample size.
+     */
+    static int computeSampleSize(int longEdge, int target, boolean atMostTarget) {
+        int sampleSize = 1;
+
+        if (atMostTarget) {
+            while (longEdge / sampleSize > target) {
+                sampleSize *= 2;
+            }
+        } else {
+            while (longEdge / (sampleSize * 2) >= target) {
+                sampleSize *= 2;
+            }
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * Read the dimensions and type of the image opened by {@code source} from its header.
+     */
+    public static BitmapFactory.Options readBounds(Source source) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+
+        InputStream in = new BufferedInputStream(source.open(), HttpUtils.IO_BUFFER_SIZE);
+        try {
+            BitmapFactory.decodeStream(in, null, bounds);
+        } finally {
+            in.close();
+        }
+
+        return bounds;
+    }
+
+    /**
+     * @return the clockwise rotation in degrees which makes the JPEG opened by {@code source}
+     *         upright.
+     */
+    public static int getRotation(Source source) throws IOException {
+        InputStream in = new BufferedInputStream(source.open(), HttpUtils.IO_BUFFER_SIZE);
+        try {
+            return ExifOrientation.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void drawSampled(Source source, Matrix matrix, Canvas canvas, Paint paint)
+            throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = mSampleSize;
+
+        Bitmap sampled;
+        InputStream in = new BufferedInputStream(source.open(), HttpUtils.IO_BUFFER_SIZE);
+        try {
+            sampled = BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+
+        if (sampled == null) {
+            throw new IOException("Unable to decode image: " + source);
+        }
+
+        Matrix sourceMatrix = new Matrix(matrix);
+        sourceMatrix.preScale((float) mSourceWidth / sampled.getWidth(),
+                (float) mSourceHeight / sampled.getHeight());
+        canvas.drawBitmap(sampled, sourceMatrix, paint);
+        sampleHeap();
+        sampled.recycle();
+    }
+
+    private void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory()
+                + Debug.getNativeHeapAllocatedSize();
+
+        mPeakHeapBytes = Math.max(mPeakHeapBytes, used);
+    }
+
+    @SuppressLint("NewApi")
+    private class RegionStripDrawer {
+
+        /**
+         * @return false, having drawn nothing, if the region decoder does not support the
+         *         format of the source.
+         */
+        boolean draw(Source source, Matrix matrix, Canvas canvas, Paint paint)
+                throws IOException {
+            BitmapRegionDecoder decoder;
+            InputStream in = source.open();
+            try {
+                decoder = BitmapRegionDecoder.newInstance(in, false);
+            } catch (IOException e) {
+                Log.v(TAG, "Region decoder unavailable for " + source + ": " + e.getMessage());
+                return false;
+            } finally {
+                in.close();
+            }
+
+            if (decoder == null) {
+                return false;
+            }
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = mSampleSize;
+
+            int stripRows = STRIP_HEIGHT * mSampleSize;
+            Rect region = new Rect();
+            Matrix stripMatrix = new Matrix();
+
+            try {
+                for (int top = 0; top < mSourceHeight; top += stripRows) {
+                    region.set(0, top, mSourceWidth, Math.min(mSourceHeight, top + stripRows));
+                    Bitmap strip = decoder.decodeRegion(region, options);
+
+                    if (strip == null) {
+                        throw new IOException("Unable to decode " + region + " of " + source);
+                    }
+
+                    stripMatrix.set(matrix);
+                    stripMatrix.preTranslate(0, top);
+                    stripMatrix.preScale((float) region.width() / strip.getWidth(),
+                            (float) region.height() / strip.getHeight());
+                    canvas.drawBitmap(strip, stripMatrix, paint);
+                    sampleHeap();
+                    strip.recycle();
+                }
+            } finally {
+                decoder.recycle();
+            }
+
+            return true;
+        }
+    }
+}
@@ -104,8 +104,11 @@ public class Photo {
         return themeId != theme.id;
     }
 
+    /**
+     * @return the API URL of this photo, or null if it has no ID.
+     */
     public String getUri() {
-        return String.format(Endpoints.PHOTO, id);
+        return id != null ? Endpoints.photo(id) : null;
     }
 
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.tasks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.google.plus.samples.photohunt.Endpoints;
+import com.google.plus.samples.photohunt.HttpUtils;
+import com.google.plus.samples.photohunt.tasks.FetchJsonTask.FetchCallback;
+
+/**
+ * Streams the content of a URL to a local file without holding it in memory.
+ *
+ * The download is written to a temporary file which is renamed into place once complete, so a
+ * file which exists at the destination is always whole and is reused without refetching.
+ */
+public class FetchFileTask extends AsyncTask<Void, Void, File> {
+
+    private static final String TAG = FetchFileTask.class.getSimpleName();
+
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    private final String mUrl;
+
+    private final File mDestination;
+
+    private final FetchCallback<File> mCallback;
+
+    private Exception mException;
+
+    public FetchFileTask(String fetchUrl, File destination, FetchCallback<File> callback) {
+        mUrl = fetchUrl;
+        mDestination = destination;
+        mCallback = callback;
+    }
+
+    @Override
+    protected File doInBackground(Void... params) {
+        try {
+            if (!mDestination.exists()) {
+                fetchData();
+            }
+
+            return mDestination;
+        } catch (Exception e) {
+            if (!isCancelled()) {
+                mException = e;
+            }
+        }
+
+        return null;
+    }
+
+    protected void fetchData() throws IOException {
+        HttpURLConnection urlConnection = null;
+        InputStream inStream = null;
+        OutputStream outStream = null;
+        File partial = new File(mDestination.getPath() + PARTIAL_SUFFIX);
+
+        try {
+            mDestination.getParentFile().mkdirs();
+
+            urlConnection = (HttpURLConnection) new URL(mUrl).openConnection();
+            urlConnection.setRequestProperty("User-Agent", Endpoints.USER_AGENT);
+            urlConnection.setUseCaches(false);
+
+            inStream = urlConnection.getInputStream();
+            outStream = new FileOutputStream(partial);
+
+            int readBytes;
+            byte[] buffer = new byte[HttpUtils.IO_BUFFER_SIZE];
+            while ((readBytes = inStream.read(buffer)) != -1) {
+                if (isCancelled()) {
+                    throw new IOException("Download cancelled.");
+                }
+
+                outStream.write(buffer, 0, readBytes);
+            }
+
+            outStream.close();
+            outStream = null;
+
+            if (!partial.renameTo(mDestination)) {
+                throw new IOException("Unable to move download to " + mDestination);
+            }
+        } finally {
+            if (outStream != null) {
+                try {
+                    outStream.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+            }
+
+            if (inStream != null) {
+                try {
+                    inStream.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+            }
+
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+
+            partial.delete();
+        }
+    }
+
+    @Override
+    protected void onPostExecute(File result) {
+        if (mException != null || result == null) {
+            Log.w(TAG, "Error fetching file (" + mUrl + ")", mException);
+            mCallback.onError(null);
+        } else {
+            mCallback.onSuccess(result);
+        }
+    }
+}
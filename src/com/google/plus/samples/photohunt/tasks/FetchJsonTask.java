@@ -30,7 +30,9 @@ import android.util.Log;
 import com.google.gson.Gson;
 import com.google.plus.samples.photohunt.Endpoints;
 import com.google.plus.samples.photohunt.HttpUtils;
+import com.google.plus.samples.photohunt.auth.AuthManager;
 import com.google.plus.samples.photohunt.auth.AuthUtil;
+import com.google.plus.samples.photohunt.cache.ApiResponseCache;
 
 /**
  * @param <T>
@@ -87,6 +89,16 @@ public class FetchJsonTask<T> extends AsyncTask<Void, Void, T> {
     }
 
     protected T fetchData() throws IOException {
+        // Replayed once if the session has expired.
+        return AuthManager.getInstance().execute(new AuthManager.Request<T>() {
+            @Override
+            public T execute() throws IOException {
+                return fetchDataOnce();
+            }
+        });
+    }
+
+    private T fetchDataOnce() throws IOException {
         HttpURLConnection urlConnection = null;
 
         try {
@@ -94,10 +106,12 @@ public class FetchJsonTask<T> extends AsyncTask<Void, Void, T> {
 
             urlConnection = (HttpURLConnection) url.openConnection();
             urlConnection.setRequestProperty("User-Agent", Endpoints.USER_AGENT);
-            urlConnection.setUseCaches(true);
+            // Only reads are cached; changes must always reach the server.
+            boolean mutation = !"GET".equals(mRequestMethod);
+            urlConnection.setUseCaches(!mutation);
             urlConnection.setRequestMethod(mRequestMethod);
             
-            AuthUtil.setAuthHeaders(urlConnection);
+            int generation = AuthUtil.setAuthHeaders(urlConnection);
             
             if (mRequestBody != null) {
                 urlConnection.setAllowUserInteraction(false);
@@ -108,7 +122,17 @@ public class FetchJsonTask<T> extends AsyncTask<Void, Void, T> {
                 outStream.write(mRequestBody);
             }
 
-            return onPostFetch(HttpUtils.getContent(urlConnection.getInputStream()));
+            AuthUtil.checkAuthorized(urlConnection, generation);
+            ApiResponseCache.recordResponse(urlConnection);
+
+            ByteArrayOutputStream content = HttpUtils.getContent(urlConnection.getInputStream());
+
+            // Cached lists may include what has just changed, such as a vote count.
+            if (mutation) {
+                ApiResponseCache.invalidateApi();
+            }
+
+            return onPostFetch(content);
         } finally {
             if (urlConnection != null) {
                 urlConnection.disconnect();
@@ -29,7 +29,9 @@ import android.util.Log;
 
 import com.google.gson.Gson;
 import com.google.plus.samples.photohunt.HttpUtils;
+import com.google.plus.samples.photohunt.auth.AuthManager;
 import com.google.plus.samples.photohunt.auth.AuthUtil;
+import com.google.plus.samples.photohunt.cache.ApiResponseCache;
 
 /**
  * Loads photos from the photohunt backend.
@@ -90,6 +92,16 @@ public class FetchJsonTaskLoader<T> extends AsyncTaskLoader<T> {
 	}
 
 	protected T fetchData() throws IOException {
+		// Replayed once if the session has expired.
+		return AuthManager.getInstance().execute(new AuthManager.Request<T>() {
+			@Override
+			public T execute() throws IOException {
+				return fetchDataOnce();
+			}
+		});
+	}
+
+	private T fetchDataOnce() throws IOException {
 		HttpURLConnection urlConnection = null;
 
 		try {
@@ -99,7 +111,9 @@ public class FetchJsonTaskLoader<T> extends AsyncTaskLoader<T> {
 			urlConnection.setUseCaches(true);
 			urlConnection.setRequestMethod("GET");
 
-			AuthUtil.setAuthHeaders(urlConnection);
+			int generation = AuthUtil.setAuthHeaders(urlConnection);
+			AuthUtil.checkAuthorized(urlConnection, generation);
+			ApiResponseCache.recordResponse(urlConnection);
 
 			return onPostFetch(HttpUtils.getContent(urlConnection
 					.getInputStream()));
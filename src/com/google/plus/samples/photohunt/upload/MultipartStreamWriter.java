@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.SystemClock;
+
+import com.google.plus.samples.photohunt.HttpUtils;
+
+/**
+ * Writes a multipart/form-data request body to a stream without ever holding the whole body in
+ * memory.
+ *
+ * All bytes pass through a small pooled buffer, whether the file part is copied or a JPEG is
+ * compressed on the fly, and the writer records the bytes written, the time taken and the peak
+ * heap usage observed while writing.
+ */
+public class MultipartStreamWriter {
+
+    /**
+     * The content of the file part.
+     */
+    public interface Body {
+
+        /**
+         * Write the content.  Implementations must not close {@code out}.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Body which JPEG-compresses a {@link Bitmap} straight into the request as it is sent.
+     */
+    public static class BitmapBody implements Body {
+
+        private final Bitmap mBitmap;
+
+        private final int mQuality;
+
+        public BitmapBody(Bitmap bitmap, int quality) {
+            mBitmap = bitmap;
+            mQuality = quality;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (!mBitmap.compress(Bitmap.CompressFormat.JPEG, mQuality, out)) {
+                throw new IOException("Unable to compress image");
+            }
+        }
+    }
+
+    /**
+     * Body which copies the bytes of a file or content URI unchanged.
+     */
+    public static class UriBody implements Body {
+
+        private final ContentResolver mResolver;
+
+        private final Uri mUri;
+
+        public UriBody(ContentResolver resolver, Uri uri) {
+            mResolver = resolver;
+            mUri = uri;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = mResolver.openInputStream(mUri);
+            if (in == null) {
+                throw new IOException("Unable to open " + mUri);
+            }
+
+            try {
+                byte[] buffer = new byte[HttpUtils.IO_BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static final String NEWLINE = "\r\n";
+
+    /** Size of the pooled write buffers. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final Queue<byte[]> sBufferPool = new ConcurrentLinkedQueue<byte[]>();
+
+    private final String mBoundary;
+
+    private final StringBuilder mFields = new StringBuilder();
+
+    private String mFileHeader;
+
+    private Body mBody;
+
+    private long mBytesWritten;
+
+    private long mWriteMs;
+
+    private long mPeakHeapBytes;
+
+    public MultipartStreamWriter(String boundary) {
+        mBoundary = boundary;
+    }
+
+    /**
+     * Add a simple form field.  Fields are written before the file part.
+     */
+    public MultipartStreamWriter addField(String name, String value) {
+        mFields.append("--").append(mBoundary).append(NEWLINE);
+        mFields.append("Content-Disposition: form-data; name=\"").append(name).append('"')
+                .append(NEWLINE);
+        mFields.append(NEWLINE).append(value).append(NEWLINE);
+        return this;
+    }
+
+    /**
+     * Set the file part, which is written last.
+     */
+    public MultipartStreamWriter setFile(String name, String filename, String contentType,
+            Body body) {
+        mFileHeader = "--" + mBoundary + NEWLINE
+                + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + filename
+                + "\"" + NEWLINE
+                + "Content-Type: " + contentType + NEWLINE
+                + NEWLINE;
+        mBody = body;
+        return this;
+    }
+
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + mBoundary;
+    }
+
+    /**
+     * Write the request body.  {@code out} is flushed but not closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        PooledBufferOutputStream buffered = new PooledBufferOutputStream(out);
+
+        try {
+            buffered.write(getBytes(getPreamble()));
+
+            if (mBody != null) {
+                mBody.writeTo(buffered);
+            }
+
+            buffered.write(getBytes(getEpilogue()));
+            buffered.flush();
+        } finally {
+            buffered.release();
+            mWriteMs = SystemClock.uptimeMillis() - start;
+        }
+    }
+
+    /**
+     * @return the number of bytes of the request body written so far.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return the time spent in {@link #writeTo(OutputStream)}.
+     */
+    public long getWriteMs() {
+        return mWriteMs;
+    }
+
+    /**
+     * @return the highest Java plus native heap usage sampled while writing.
+     */
+    public long getPeakHeapBytes() {
+        return mPeakHeapBytes;
+    }
+
+    private String getPreamble() {
+        return mFileHeader != null ? mFields + mFileHeader : mFields.toString();
+    }
+
+    private String getEpilogue() {
+        return (mBody != null ? NEWLINE : "") + "--" + mBoundary + "--" + NEWLINE;
+    }
+
+    private static byte[] getBytes(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory()
+                + Debug.getNativeHeapAllocatedSize();
+
+        mPeakHeapBytes = Math.max(mPeakHeapBytes, used);
+    }
+
+    /**
+     * Buffers writes in a pooled array so that writing a body never allocates more than one
+     * small buffer, whichever encoder produces it.
+     */
+    private class PooledBufferOutputStream extends OutputStream {
+
+        private final OutputStream mOut;
+
+        private byte[] mBuffer;
+
+        private int mCount;
+
+        PooledBufferOutputStream(OutputStream out) {
+            mOut = out;
+            mBuffer = sBufferPool.poll();
+
+            if (mBuffer == null) {
+                mBuffer = new byte[BUFFER_SIZE];
+            }
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (mCount == mBuffer.length) {
+                flushBuffer();
+            }
+
+            mBuffer[mCount++] = (byte) oneByte;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (mCount == mBuffer.length) {
+                    flushBuffer();
+                }
+
+                int count = Math.min(length, mBuffer.length - mCount);
+                System.arraycopy(buffer, offset, mBuffer, mCount, count);
+                mCount += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            mOut.flush();
+        }
+
+        private void flushBuffer() throws IOException {
+            if (mCount > 0) {
+                mOut.write(mBuffer, 0, mCount);
+                mBytesWritten += mCount;
+                mCount = 0;
+                sampleHeap();
+            }
+        }
+
+        void release() {
+            if (mBuffer != null && sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.offer(mBuffer);
+            }
+
+            mBuffer = null;
+        }
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.plus.samples.photohunt.Endpoints;
+import com.google.plus.samples.photohunt.HttpUtils;
+import com.google.plus.samples.photohunt.auth.AuthManager;
+import com.google.plus.samples.photohunt.auth.AuthUtil;
+import com.google.plus.samples.photohunt.cache.ApiResponseCache;
+import com.google.plus.samples.photohunt.cache.EncodedImageCache;
+import com.google.plus.samples.photohunt.image.DecodeExecutor;
+import com.google.plus.samples.photohunt.image.PhotoTranscoder;
+import com.google.plus.samples.photohunt.model.Photo;
+
+/**
+ * Uploads photos to PhotoHunt.
+ *
+ * The photo may be a file path or any file or content URI.  It is always read as a stream
+ * through the {@link ContentResolver} on the calling worker thread, so gallery images need not
+ * be resolved to a file path, and need not have one, before they are queued.
+ *
+ * Photos already uploaded to the same theme, recognised by their content hash, are not
+ * uploaded again.  Otherwise the photo is encoded into a request body staged on disk and sent
+ * by a {@link ResumableUploader}, so an upload interrupted by a network failure or process
+ * death is sent again without preparing the photo again, continuing from the last byte the
+ * server received if the server supports it, when its {@link UploadSession} is uploaded again.
+ *
+ * Once a photo has been uploaded a thumbnail is generated from the local copy and cached under
+ * the thumbnail URL returned by the server, so the photo can be shown straight away without
+ * fetching the thumbnail back.
+ */
+public class PhotoUploader {
+
+    private static final String BOUNDARY = "------boundary1";
+
+    /** Largest JPEG, in bytes, which is uploaded without being transcoded. */
+    private static final long MAX_PASSTHROUGH_BYTES = 2 * 1024 * 1024;
+
+    /** Long edge of the locally generated thumbnail, enough for a full width list item. */
+    private static final int THUMBNAIL_LONG_EDGE = 640;
+
+    private static final int THUMBNAIL_QUALITY = 80;
+
+    private static final AtomicInteger sPassthroughCount = new AtomicInteger();
+
+    private static final AtomicInteger sTranscodeCount = new AtomicInteger();
+
+    private static final String TAG = PhotoUploader.class.getSimpleName();
+
+    private static final AtomicInteger sDuplicateCount = new AtomicInteger();
+
+    private static final AtomicLong sFirstByteLatencyMs = new AtomicLong();
+
+    private static final AtomicInteger sFirstByteCount = new AtomicInteger();
+
+    private final ContentResolver mResolver;
+
+    private final UploadSessionStore mStore;
+
+    private final UploadUrlPool mUrlPool;
+
+    private final UploadPolicy mPolicy;
+
+    private final UploadHashIndex mHashIndex;
+
+    private final EncodedImageCache mThumbnailCache;
+
+    public PhotoUploader(ContentResolver resolver, UploadSessionStore store,
+            UploadUrlPool urlPool, UploadPolicy policy, UploadHashIndex hashIndex,
+            EncodedImageCache thumbnailCache) {
+        mResolver = resolver;
+        mStore = store;
+        mUrlPool = urlPool;
+        mPolicy = policy;
+        mHashIndex = hashIndex;
+        mThumbnailCache = thumbnailCache;
+    }
+
+    /**
+     * Prepare the photo described by {@code session} for sending: check whether it has already
+     * been uploaded to the theme and, if not, stage its request body.
+     *
+     * @return the previously uploaded photo if this is a duplicate, in which case the session
+     *         has been removed; otherwise null.
+     * @throws ResumableUploader.UploadRejectedException if the photo cannot be read.
+     * @throws IOException if preparation was interrupted and should be retried later.
+     */
+    public Photo prepare(UploadSession session) throws IOException {
+        try {
+            if (!canRead(getUri(session.source))) {
+                throw new ResumableUploader.UploadRejectedException("Unable to read "
+                        + session.source);
+            }
+
+            Photo duplicate = findDuplicate(session);
+            if (duplicate != null) {
+                sDuplicateCount.incrementAndGet();
+                Log.v(TAG, "[" + session.source + "] was already uploaded to theme "
+                        + session.themeId + " as photo " + duplicate.id);
+                mStore.remove(session);
+                return duplicate;
+            }
+
+            stage(session);
+            return null;
+        } catch (ResumableUploader.UploadRejectedException e) {
+            Log.w(TAG, "Failed to prepare image [" + session.source + "]: " + e.getMessage());
+            mStore.remove(session);
+            throw e;
+        }
+    }
+
+    /**
+     * Send the staged body of {@code session}, resuming from the last acknowledged byte where
+     * possible.  The session is removed from the store once the upload has completed or been
+     * rejected.
+     *
+     * @param listener notified as the server acknowledges the body; may be null.
+     * @return the uploaded photo.
+     * @throws ResumableUploader.UploadRejectedException if the upload failed permanently.
+     * @throws IOException if the upload was interrupted and should be resumed later.
+     */
+    public Photo send(UploadSession session, ResumableUploader.ProgressListener listener)
+            throws IOException {
+        String responseBody = null;
+
+        try {
+            // A session which has never been sent has no upload URL.
+            boolean fresh = session.uploadUrl == null;
+
+            if (!fresh) {
+                Log.v(TAG, "Resuming upload of [" + session.source + "] at " + session.offset
+                        + "/" + session.length);
+            }
+
+            long offset = session.offset;
+            long start = SystemClock.uptimeMillis();
+            responseBody = sendStaged(session, listener, fresh);
+            long elapsed = Math.max(1, SystemClock.uptimeMillis() - start);
+            mPolicy.recordUpload(session, session.length - offset, elapsed);
+            Log.v(TAG, "Upload image [" + session.source + "]: " + responseBody);
+
+            Photo result = new Gson().fromJson(responseBody, Photo.class);
+            if (result == null) {
+                throw new ResumableUploader.UploadRejectedException("Empty upload response");
+            }
+
+            if (session.contentHash != null && result.id != null) {
+                mHashIndex.put(session.themeId, session.contentHash, result.id);
+            }
+
+            cacheThumbnail(session, result);
+            ApiResponseCache.invalidateApi();
+            mStore.remove(session);
+            return result;
+        } catch (JsonParseException jsonException) {
+            Log.e(TAG, "Unable to parse the json response for: " + session.source,
+                    jsonException);
+            mStore.remove(session);
+            throw new ResumableUploader.UploadRejectedException("Unable to parse response: "
+                    + responseBody);
+        } catch (ResumableUploader.UploadRejectedException e) {
+            Log.w(TAG, "Failed to upload image [" + session.source + "]: " + e.getMessage());
+            mStore.remove(session);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of photos uploaded as their original bytes since the process started.
+     */
+    public static int getPassthroughCount() {
+        return sPassthroughCount.get();
+    }
+
+    /**
+     * @return the number of photos decoded and re-encoded for upload since the process started.
+     */
+    public static int getTranscodeCount() {
+        return sTranscodeCount.get();
+    }
+
+    /**
+     * @return the number of uploads short-circuited because the photo was already uploaded to
+     *         the theme, since the process started.
+     */
+    public static int getDuplicateCount() {
+        return sDuplicateCount.get();
+    }
+
+    /**
+     * @return the average time from a photo being queued to its first byte being sent.
+     */
+    public static long getAverageFirstByteLatencyMs() {
+        int count = sFirstByteCount.get();
+        return count > 0 ? sFirstByteLatencyMs.get() / count : 0;
+    }
+
+    /**
+     * @return {@code source} as a URI; plain file paths, which earlier releases queued, become
+     *         file URIs.
+     */
+    private static Uri getUri(String source) {
+        Uri uri = Uri.parse(source);
+        return uri.getScheme() != null ? uri : Uri.fromFile(new File(source));
+    }
+
+    /**
+     * @return true if {@code uri} can be opened.  Content URIs granted by the gallery stop being
+     *         readable once the process which received them has died.
+     */
+    private boolean canRead(Uri uri) throws IOException {
+        try {
+            InputStream in = mResolver.openInputStream(uri);
+            if (in == null) {
+                return false;
+            }
+
+            in.close();
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (SecurityException e) {
+            Log.w(TAG, "No longer permitted to read " + uri);
+            return false;
+        }
+    }
+
+    /**
+     * @return the length of the content at {@code uri} in bytes, or -1 if the provider does not
+     *         report it.
+     */
+    private long getLength(Uri uri) {
+        AssetFileDescriptor descriptor = null;
+        try {
+            descriptor = mResolver.openAssetFileDescriptor(uri, "r");
+            return descriptor != null ? descriptor.getLength() : -1;
+        } catch (FileNotFoundException e) {
+            return -1;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * Hash the source of {@code session} and look it up in the index of photos already
+     * uploaded to its theme.
+     *
+     * @return the previously uploaded photo, or null if there is none or it no longer exists.
+     */
+    private Photo findDuplicate(UploadSession session) throws IOException {
+        session.contentHash = UploadHashIndex.hash(
+                mResolver.openInputStream(getUri(session.source)));
+        final Long photoId = mHashIndex.get(session.themeId, session.contentHash);
+        if (photoId == null) {
+            return null;
+        }
+
+        try {
+            // Replayed once if the session has expired.
+            Photo photo = AuthManager.getInstance().execute(new AuthManager.Request<Photo>() {
+                @Override
+                public Photo execute() throws IOException {
+                    return fetchPhoto(photoId);
+                }
+            });
+
+            if (photo != null) {
+                return photo;
+            }
+
+            // The earlier upload has been deleted, so upload the photo again.
+            mHashIndex.remove(session.themeId, session.contentHash);
+        } catch (JsonParseException e) {
+            Log.w(TAG, "Unable to parse photo " + photoId, e);
+        } catch (IOException e) {
+            // Upload the photo rather than risk losing it; the upload will fail too if the
+            // network is down.
+            Log.w(TAG, "Unable to check for a duplicate of [" + session.source + "]", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the photo with ID {@code photoId}, or null if it no longer exists.
+     */
+    private static Photo fetchPhoto(long photoId) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(Endpoints.photo(photoId))
+                .openConnection();
+
+        try {
+            int generation = AuthUtil.setAuthHeaders(conn);
+            conn.setRequestProperty("User-Agent", Endpoints.USER_AGENT);
+            AuthUtil.checkAuthorized(conn, generation);
+
+            int responseCode = conn.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                String body = HttpUtils.getContent(conn.getInputStream()).toString("UTF-8");
+                Photo photo = new Gson().fromJson(body, Photo.class);
+
+                if (photo != null && photo.id != null) {
+                    return photo;
+                }
+            }
+
+            Log.v(TAG, "Photo " + photoId + " is gone (" + responseCode + "), uploading again");
+            return null;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Write the photo into a complete multipart request body on disk, so that it can be sent
+     * again after a failure without preparing it again.  Photos which already meet the upload
+     * constraints are copied unchanged, otherwise they are transcoded.
+     */
+    private void stage(UploadSession session) throws IOException {
+        String localImageUri = session.source;
+        Uri source = getUri(localImageUri);
+        Bitmap uploadBitmap = null;
+
+        UploadPolicy.Settings settings = mPolicy.choose(session);
+
+        MultipartStreamWriter multipart = new MultipartStreamWriter(BOUNDARY)
+                .addField("themeId", String.valueOf(session.themeId));
+
+        long length = getLength(source);
+
+        if (canPassThrough(new UriSource(source), length, settings.longEdge)) {
+            session.quality = 0;
+            multipart.setFile("image", "image.jpg", "application/octet-stream",
+                    new MultipartStreamWriter.UriBody(mResolver, source));
+        } else {
+            uploadBitmap = transcode(new UriSource(source), settings.longEdge);
+            multipart.setFile("image", "image.jpg", "application/octet-stream",
+                    new MultipartStreamWriter.BitmapBody(uploadBitmap, settings.quality));
+        }
+
+        File staged = new File(mStore.getStagingDir(),
+                Integer.toHexString(session.key.hashCode()) + "-" + System.currentTimeMillis());
+        OutputStream out = new FileOutputStream(staged);
+
+        try {
+            multipart.writeTo(out);
+        } catch (IOException e) {
+            staged.delete();
+            throw e;
+        } finally {
+            out.close();
+
+            if (uploadBitmap != null) {
+                uploadBitmap.recycle();
+            }
+        }
+
+        // Counted only once the body is staged, so failed and retried stagings are not.
+        if (uploadBitmap == null) {
+            sPassthroughCount.incrementAndGet();
+        } else {
+            sTranscodeCount.incrementAndGet();
+        }
+
+        Log.v(TAG, "Staged " + multipart.getBytesWritten() + " bytes for [" + localImageUri
+                + "] to disk in " + multipart.getWriteMs() + "ms, peak heap "
+                + (multipart.getPeakHeapBytes() / 1024) + " KB ("
+                + (uploadBitmap == null ? "passthrough" : "transcoded") + "; "
+                + sPassthroughCount + " passthrough, " + sTranscodeCount + " transcoded)");
+
+        session.stagedPath = staged.getPath();
+        session.contentType = multipart.getContentType();
+        session.length = staged.length();
+        session.uploadUrl = null;
+        session.offset = 0;
+        session.sent = false;
+        session.resumable = false;
+        mStore.save(session);
+    }
+
+    /**
+     * @return true if {@code source} is an upright JPEG small enough in both dimensions and bytes
+     *         to be uploaded without transcoding, judged from its header alone.  Sources of
+     *         unknown length are always transcoded, as are photos which need rotating upright,
+     *         since the server does not read their EXIF orientation.
+     */
+    private static boolean canPassThrough(PhotoTranscoder.Source source, long length,
+            int maxLongEdge) throws IOException {
+        if (length < 0 || length > MAX_PASSTHROUGH_BYTES) {
+            return false;
+        }
+
+        BitmapFactory.Options bounds = PhotoTranscoder.readBounds(source);
+
+        return "image/jpeg".equals(bounds.outMimeType)
+                && bounds.outWidth > 0 && bounds.outHeight > 0
+                && Math.max(bounds.outWidth, bounds.outHeight) <= maxLongEdge
+                && PhotoTranscoder.getRotation(source) == 0;
+    }
+
+    private Bitmap transcode(final PhotoTranscoder.Source source, int longEdge)
+            throws IOException {
+        final PhotoTranscoder transcoder = new PhotoTranscoder(longEdge);
+
+        // Decode on the decode pool so uploads do not compete with list thumbnails for more
+        // than their share of the CPU.
+        Bitmap uploadBitmap;
+        try {
+            uploadBitmap = DecodeExecutor.getInstance().execute(
+                    "upload " + source, DecodeExecutor.PRIORITY_BACKGROUND,
+                    new Callable<Bitmap>() {
+                        @Override
+                        public Bitmap call() throws IOException {
+                            return transcoder.transcode(source);
+                        }
+                    });
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            // The source is missing or is not an image, so retrying will not help.
+            throw new ResumableUploader.UploadRejectedException(e.getMessage());
+        }
+
+        Log.v(TAG, "Transcoded [" + source + "] from " + transcoder.getSourceWidth()
+                + "x" + transcoder.getSourceHeight() + " to " + uploadBitmap.getWidth() + "x"
+                + uploadBitmap.getHeight() + " (sample size " + transcoder.getSampleSize()
+                + ") in " + transcoder.getTranscodeMs() + "ms, peak heap "
+                + (transcoder.getPeakHeapBytes() / 1024) + " KB");
+
+        return uploadBitmap;
+    }
+
+    /**
+     * Generate a thumbnail of the uploaded photo from its local copy and cache it under the
+     * thumbnail URL of {@code photo}.  Failure only means the thumbnail is fetched from the
+     * server instead.
+     */
+    private void cacheThumbnail(UploadSession session, Photo photo) {
+        if (photo.thumbnailUrl == null) {
+            return;
+        }
+
+        final PhotoTranscoder.Source source = new UriSource(getUri(session.source));
+        final PhotoTranscoder transcoder = new PhotoTranscoder(THUMBNAIL_LONG_EDGE);
+
+        try {
+            byte[] thumbnail = DecodeExecutor.getInstance().execute("thumbnail " + source,
+                    DecodeExecutor.PRIORITY_VISIBLE, new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            Bitmap bitmap = transcoder.transcode(source);
+                            try {
+                                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                                bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY,
+                                        out);
+                                return out.toByteArray();
+                            } finally {
+                                bitmap.recycle();
+                            }
+                        }
+                    });
+
+            mThumbnailCache.put(photo.thumbnailUrl, thumbnail);
+            Log.v(TAG, "Cached " + thumbnail.length + " byte thumbnail of [" + session.source
+                    + "] as " + photo.thumbnailUrl);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to generate a thumbnail of [" + session.source + "]", e);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Out of memory generating a thumbnail of [" + session.source + "]");
+        }
+    }
+
+    /**
+     * Send the staged body of {@code session}, obtaining a new upload URL if it has none or if
+     * the one it has expired.
+     */
+    private String sendStaged(UploadSession session,
+            ResumableUploader.ProgressListener listener, boolean fresh) throws IOException {
+        ResumableUploader uploader = new ResumableUploader(mStore, listener);
+
+        if (session.uploadUrl == null) {
+            assignUploadUrl(session);
+        }
+
+        if (fresh) {
+            // Time from the photo being taken or picked, when it was queued, to its first byte
+            // being sent.  Resumed uploads are excluded since they include the interruption.
+            long latency = System.currentTimeMillis() - session.created;
+            sFirstByteLatencyMs.addAndGet(latency);
+            sFirstByteCount.incrementAndGet();
+            Log.v(TAG, "First byte of [" + session.source + "] after " + latency + "ms (average "
+                    + getAverageFirstByteLatencyMs() + "ms)");
+        }
+
+        try {
+            return uploader.upload(session);
+        } catch (ResumableUploader.SessionExpiredException e) {
+            Log.w(TAG, e.getMessage() + ", restarting upload of " + session.key);
+            assignUploadUrl(session);
+
+            return uploader.upload(session);
+        }
+    }
+
+    private void assignUploadUrl(UploadSession session) throws IOException {
+        String uploadUrl = mUrlPool.takeOrFetch();
+
+        if (uploadUrl == null) {
+            throw new IOException("Unable to fetch an upload URL");
+        }
+
+        session.uploadUrl = uploadUrl;
+        session.offset = 0;
+        session.sent = false;
+        session.resumable = false;
+        mStore.save(session);
+    }
+
+    /**
+     * Opens a photo through the content resolver each time the transcoder reads it.
+     */
+    private class UriSource implements PhotoTranscoder.Source {
+
+        private final Uri mUri;
+
+        UriSource(Uri uri) {
+            mUri = uri;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            InputStream in = mResolver.openInputStream(mUri);
+            if (in == null) {
+                throw new FileNotFoundException("Unable to open " + mUri);
+            }
+
+            return in;
+        }
+
+        @Override
+        public String toString() {
+            return mUri.toString();
+        }
+    }
+}
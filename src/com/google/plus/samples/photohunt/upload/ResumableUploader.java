@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.upload;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.plus.samples.photohunt.Endpoints;
+import com.google.plus.samples.photohunt.HttpUtils;
+import com.google.plus.samples.photohunt.auth.AuthManager;
+import com.google.plus.samples.photohunt.auth.AuthUtil;
+
+/**
+ * Sends a staged request body to its upload URL as a single streamed POST, continuing an
+ * interrupted upload from the last byte the server has received where the server supports it.
+ *
+ * The upload URLs handed out by PhotoHunt accept only one complete POST, so an upload is never
+ * split up by default.  After a failure the URL is probed with an empty request carrying
+ * {@code Content-Range: bytes *}{@code /total}.  A server which supports resuming answers
+ * {@code 308 Resume Incomplete} with a {@code Range: bytes=0-last} header, and the rest of the
+ * body is then sent with {@code Content-Range: bytes first-last/total}.  Any other answer means
+ * the URL cannot be reused, and the upload is restarted from byte 0 with a new URL.
+ */
+public class ResumableUploader {
+
+    private static final String TAG = ResumableUploader.class.getSimpleName();
+
+    /** Status code used by the server to acknowledge part of the body. */
+    public static final int RESUME_INCOMPLETE = 308;
+
+    private static final int MAX_RETRIES = 5;
+
+    private static final long INITIAL_BACKOFF_MS = 1000;
+
+    /**
+     * Thrown when the upload URL cannot be used again, in which case the upload must be
+     * restarted with a new one.
+     */
+    public static class SessionExpiredException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public SessionExpiredException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when the server refuses the upload outright, in which case retrying is pointless.
+     */
+    public static class UploadRejectedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public UploadRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Notified on the uploading thread each time the server acknowledges part of the body.
+     */
+    public interface ProgressListener {
+        void onProgress(UploadSession session);
+    }
+
+    private final UploadSessionStore mStore;
+
+    private final ProgressListener mListener;
+
+    /**
+     * @param listener notified as the server acknowledges the body; may be null.
+     */
+    public ResumableUploader(UploadSessionStore store, ProgressListener listener) {
+        mStore = store;
+        mListener = listener;
+    }
+
+    /**
+     * Send the rest of {@code session}'s staged body, retrying with exponential back-off when
+     * the network fails.
+     *
+     * @return the body of the server's final response.
+     * @throws SessionExpiredException if the upload must be restarted with a new URL.
+     */
+    public String upload(UploadSession session) throws IOException {
+        int retries = 0;
+        boolean reauthenticated = false;
+
+        // Some of the body may already have been sent to a URL which has been used, so ask the
+        // server what it has before sending anything more.
+        boolean probe = session.sent;
+
+        while (true) {
+            checkInterrupted();
+
+            try {
+                if (probe) {
+                    String body = queryOffset(session);
+                    if (body != null) {
+                        return body;
+                    }
+
+                    probe = false;
+                }
+
+                String body = send(session);
+                if (body != null) {
+                    return body;
+                }
+
+                retries = 0;
+            } catch (AuthManager.UnauthorizedException e) {
+                // Replay once with new credentials, resuming from whatever the server received.
+                if (reauthenticated
+                        || !AuthManager.getInstance().reauthenticate(e.getGeneration())) {
+                    throw e;
+                }
+
+                reauthenticated = true;
+                probe = true;
+            } catch (SessionExpiredException e) {
+                throw e;
+            } catch (UploadRejectedException e) {
+                throw e;
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (++retries > MAX_RETRIES) {
+                    throw e;
+                }
+
+                long backoff = INITIAL_BACKOFF_MS << (retries - 1);
+                Log.w(TAG, "Upload of " + session.key + " interrupted at " + session.offset
+                        + "/" + session.length + ", retrying in " + backoff + "ms", e);
+                sleep(backoff);
+                probe = true;
+            }
+        }
+    }
+
+    /**
+     * Ask the server how much of the body it has received and update the session to match.
+     *
+     * @return the server's final response if it already has the whole body, otherwise null.
+     * @throws SessionExpiredException if the server does not support resuming.
+     */
+    private String queryOffset(UploadSession session) throws IOException {
+        HttpURLConnection conn = openConnection(session);
+        int generation = AuthUtil.setAuthHeaders(conn);
+
+        try {
+            conn.setRequestProperty("Content-Range", "bytes */" + session.length);
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(0);
+
+            AuthUtil.checkAuthorized(conn, generation);
+            int responseCode = conn.getResponseCode();
+
+            if (responseCode == RESUME_INCOMPLETE) {
+                acknowledge(session, conn);
+                return null;
+            }
+
+            // Only a server which has already shown that it supports resuming answers a probe
+            // with the final response; anything else may have taken the probe as the upload.
+            if (session.resumable && (responseCode == HttpURLConnection.HTTP_OK
+                    || responseCode == HttpURLConnection.HTTP_CREATED)) {
+                session.offset = session.length;
+                return HttpUtils.getContent(conn.getInputStream()).toString("UTF-8");
+            }
+
+            throw new SessionExpiredException("Upload URL cannot be resumed (" + responseCode
+                    + "): " + session.uploadUrl);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Stream the staged body from the session's current offset in a single request.
+     *
+     * @return the server's final response if this completed the upload, otherwise null.
+     */
+    private String send(UploadSession session) throws IOException {
+        HttpURLConnection conn = openConnection(session);
+        int generation = AuthUtil.setAuthHeaders(conn);
+        long length = session.length - session.offset;
+
+        try {
+            if (session.resumable) {
+                conn.setRequestProperty("Content-Range", "bytes " + session.offset + "-"
+                        + (session.length - 1) + "/" + session.length);
+            }
+
+            conn.setDoOutput(true);
+            if (length <= Integer.MAX_VALUE) {
+                conn.setFixedLengthStreamingMode((int) length);
+            } else {
+                conn.setChunkedStreamingMode(HttpUtils.IO_BUFFER_SIZE);
+            }
+
+            // From here on the URL may have received part of the body.
+            if (!session.sent) {
+                session.sent = true;
+                mStore.save(session);
+            }
+
+            long start = SystemClock.uptimeMillis();
+            long peakHeapBytes = writeBody(session, conn.getOutputStream());
+            String body = handleResponse(session, conn, generation);
+
+            long elapsed = Math.max(1, SystemClock.uptimeMillis() - start);
+            Log.v(TAG, "Sent " + length + " bytes of " + session.key + " in " + elapsed
+                    + "ms (" + (length / elapsed) + " KB/s), peak heap " + (peakHeapBytes / 1024)
+                    + " KB");
+
+            return body;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Copy the staged body from the session's current offset to {@code out}, which is closed.
+     *
+     * @return the highest Java plus native heap usage sampled while writing.
+     */
+    private static long writeBody(UploadSession session, OutputStream out) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(session.stagedPath, "r");
+        long peakHeapBytes = 0;
+
+        try {
+            file.seek(session.offset);
+
+            byte[] buffer = new byte[HttpUtils.IO_BUFFER_SIZE];
+            int count;
+            while ((count = file.read(buffer)) != -1) {
+                checkInterrupted();
+                out.write(buffer, 0, count);
+                peakHeapBytes = Math.max(peakHeapBytes, getHeapBytes());
+            }
+
+            out.close();
+        } finally {
+            file.close();
+        }
+
+        return peakHeapBytes;
+    }
+
+    private HttpURLConnection openConnection(UploadSession session) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(session.uploadUrl).openConnection();
+
+        conn.setRequestMethod("POST");
+        conn.setUseCaches(false);
+        conn.setRequestProperty("Accept", "*/*");
+        conn.setRequestProperty("Connection", "Keep-Alive");
+        conn.setRequestProperty("User-Agent", Endpoints.USER_AGENT);
+        conn.setRequestProperty("Content-Type", session.contentType);
+
+        return conn;
+    }
+
+    private String handleResponse(UploadSession session, HttpURLConnection conn,
+            int generation) throws IOException {
+        AuthUtil.checkAuthorized(conn, generation);
+        int responseCode = conn.getResponseCode();
+
+        if (responseCode == HttpURLConnection.HTTP_OK
+                || responseCode == HttpURLConnection.HTTP_CREATED) {
+            session.offset = session.length;
+            return HttpUtils.getContent(conn.getInputStream()).toString("UTF-8");
+        }
+
+        if (responseCode == RESUME_INCOMPLETE) {
+            acknowledge(session, conn);
+            return null;
+        }
+
+        if (responseCode == HttpURLConnection.HTTP_NOT_FOUND
+                || responseCode == HttpURLConnection.HTTP_GONE) {
+            throw new SessionExpiredException("Upload URL expired: " + session.uploadUrl);
+        }
+
+        if (responseCode >= 500) {
+            // Server errors are transient; let the caller retry.
+            throw new IOException("Upload failed with error code " + responseCode + ": "
+                    + HttpUtils.getErrorResponse(conn));
+        }
+
+        throw new UploadRejectedException("Upload rejected with error code " + responseCode
+                + ": " + HttpUtils.getErrorResponse(conn));
+    }
+
+    /**
+     * Record the offset acknowledged by a {@code 308 Resume Incomplete} response, which also
+     * shows that the server supports resuming.
+     */
+    private void acknowledge(UploadSession session, HttpURLConnection conn) throws IOException {
+        session.offset = parseRange(conn.getHeaderField("Range"));
+        session.resumable = true;
+        mStore.save(session);
+
+        Log.v(TAG, "Upload of " + session.key + " acknowledged to " + session.offset + "/"
+                + session.length);
+
+        if (mListener != null) {
+            mListener.onProgress(session);
+        }
+    }
+
+    /**
+     * @return the number of bytes acknowledged by a {@code Range: bytes=0-last} header, which
+     *         is absent if the server has received nothing.
+     */
+    private static long parseRange(String range) throws IOException {
+        if (range == null) {
+            return 0;
+        }
+
+        int dash = range.lastIndexOf('-');
+        if (dash < 0) {
+            throw new IOException("Malformed Range header: " + range);
+        }
+
+        try {
+            return Long.parseLong(range.substring(dash + 1).trim()) + 1;
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed Range header: " + range);
+        }
+    }
+
+    private static long getHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Upload cancelled");
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload cancelled");
+        }
+    }
+}
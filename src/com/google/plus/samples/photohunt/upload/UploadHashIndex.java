@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.plus.samples.photohunt.HttpUtils;
+
+/**
+ * Remembers the content hash of each photo uploaded to each theme, so that uploading the same
+ * photo to the same theme again can be short-circuited.
+ *
+ * The index is persisted in {@link SharedPreferences} and bounded to {@link #MAX_ENTRIES}; the
+ * least recently uploaded entries are evicted first.
+ */
+public class UploadHashIndex {
+
+    private static final String TAG = UploadHashIndex.class.getSimpleName();
+
+    private static final String PREFS_NAME = "upload_hashes";
+
+    private static final int MAX_ENTRIES = 500;
+
+    private final SharedPreferences mPrefs;
+
+    public UploadHashIndex(Context context) {
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Compute the SHA-1 of {@code in}, reading it incrementally through a small buffer.  The
+     * stream is closed.
+     *
+     * @return the hash as a hex string.
+     */
+    public static String hash(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+
+        try {
+            byte[] buffer = new byte[HttpUtils.IO_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return hex.toString();
+    }
+
+    /**
+     * @return the ID of the photo with content {@code hash} previously uploaded to the theme,
+     *         or null if there is none.
+     */
+    public synchronized Long get(long themeId, String hash) {
+        String value = mPrefs.getString(getKey(themeId, hash), null);
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return Long.valueOf(value.substring(0, value.indexOf(',')));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Discarding malformed entry: " + value);
+            remove(themeId, hash);
+            return null;
+        }
+    }
+
+    /**
+     * Record that the photo with content {@code hash} was uploaded to the theme as
+     * {@code photoId}.
+     */
+    public synchronized void put(long themeId, String hash, long photoId) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        editor.putString(getKey(themeId, hash), photoId + "," + System.currentTimeMillis());
+
+        Map<String, ?> entries = mPrefs.getAll();
+        if (entries.size() >= MAX_ENTRIES) {
+            String oldest = null;
+            long oldestTime = Long.MAX_VALUE;
+
+            for (Map.Entry<String, ?> entry : entries.entrySet()) {
+                long time = getTime(String.valueOf(entry.getValue()));
+                if (time < oldestTime) {
+                    oldest = entry.getKey();
+                    oldestTime = time;
+                }
+            }
+
+            if (oldest != null) {
+                editor.remove(oldest);
+            }
+        }
+
+        editor.commit();
+    }
+
+    public synchronized void remove(long themeId, String hash) {
+        mPrefs.edit().remove(getKey(themeId, hash)).commit();
+    }
+
+    private static String getKey(long themeId, String hash) {
+        return themeId + ":" + hash;
+    }
+
+    private static long getTime(String value) {
+        try {
+            return Long.parseLong(value.substring(value.indexOf(',') + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.upload;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.plus.samples.photohunt.model.Photo;
+
+/**
+ * Entry point to the background upload queue.
+ *
+ * Uploads are persisted in an {@link UploadSessionStore} as soon as they are enqueued and are
+ * sent by {@link UploadService}, so they are independent of the activity which started them.
+ * Any screen can register an {@link UploadListener} to observe their progress.
+ *
+ * The session store is read and written on a single store thread, never on the main thread.
+ */
+public class UploadManager {
+
+    /**
+     * Notified on the main thread whenever the status of an upload changes.
+     */
+    public interface UploadListener {
+        void onUploadChanged(UploadStatus status);
+    }
+
+    private final Context mContext;
+
+    private final UploadSessionStore mStore;
+
+    private final UploadUrlPool mUrlPool = new UploadUrlPool();
+
+    private final UploadPolicy mPolicy;
+
+    private final UploadHashIndex mHashIndex;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService mStoreExecutor = Executors.newSingleThreadExecutor(
+            new UploadService.UploadThreadFactory("Upload store"));
+
+    /** Status of each upload which has not yet completed or failed, in queue order. */
+    private final Map<String, UploadStatus> mStatuses = new LinkedHashMap<String, UploadStatus>();
+
+    private final List<UploadListener> mListeners = new CopyOnWriteArrayList<UploadListener>();
+
+    /**
+     * Uploads which completed while no listener was registered, by key.  Only used on the main
+     * thread.
+     */
+    private final Map<String, UploadStatus> mUnconsumedCompletions =
+            new LinkedHashMap<String, UploadStatus>();
+
+    public UploadManager(Context context) {
+        mContext = context.getApplicationContext();
+        mStore = new UploadSessionStore(mContext);
+        mPolicy = new UploadPolicy(mContext);
+        mHashIndex = new UploadHashIndex(mContext);
+    }
+
+    /**
+     * Add the photo at {@code source} to the end of the upload queue.  If the same photo is
+     * already queued for the same theme the existing upload continues instead.
+     */
+    public void enqueue(final long themeId, final String source) {
+        final long created = System.currentTimeMillis();
+
+        executeOnStore(new Runnable() {
+            @Override
+            public void run() {
+                String key = UploadSession.getKey(themeId, source);
+                UploadSession session = mStore.get(key);
+
+                if (session == null) {
+                    session = new UploadSession();
+                    session.key = key;
+                    session.themeId = themeId;
+                    session.source = source;
+                    session.created = created;
+                    mStore.save(session);
+                }
+
+                setStatus(session, UploadStatus.STATE_QUEUED, null);
+                start();
+            }
+        });
+    }
+
+    /**
+     * Start sending queued uploads, for example once the user has signed in.
+     */
+    public void start() {
+        mContext.startService(new Intent(mContext, UploadService.class));
+    }
+
+    /**
+     * Fetch upload URLs ahead of time, for example when the user is shown the option to take
+     * or pick a photo, so that the next upload can start without waiting for one.
+     */
+    public void prefetchUploadUrls() {
+        mUrlPool.prefill();
+    }
+
+    /**
+     * @return the status of each upload which has not yet completed or failed.
+     */
+    public List<UploadStatus> getUploads() {
+        synchronized (mStatuses) {
+            return new ArrayList<UploadStatus>(mStatuses.values());
+        }
+    }
+
+    /**
+     * @return true if any upload is queued or being sent, as opposed to waiting for the network.
+     */
+    public boolean isUploading() {
+        synchronized (mStatuses) {
+            for (UploadStatus status : mStatuses.values()) {
+                if (status.state != UploadStatus.STATE_WAITING) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Take the uploads which completed while no listener was registered, for example while the
+     * camera was in front, so that a screen can show them when it starts listening again.  Must
+     * be called on the main thread.
+     *
+     * @return the completed uploads, oldest first; each is returned only once.
+     */
+    public List<UploadStatus> takeUnconsumedCompletions() {
+        List<UploadStatus> completions =
+                new ArrayList<UploadStatus>(mUnconsumedCompletions.values());
+        mUnconsumedCompletions.clear();
+        return completions;
+    }
+
+    public void addListener(UploadListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(UploadListener listener) {
+        mListeners.remove(listener);
+    }
+
+    UploadSessionStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * Run {@code task} on the store thread, after any store work queued before it.
+     */
+    void executeOnStore(Runnable task) {
+        mStoreExecutor.execute(task);
+    }
+
+    UploadUrlPool getUrlPool() {
+        return mUrlPool;
+    }
+
+    UploadHashIndex getHashIndex() {
+        return mHashIndex;
+    }
+
+    /**
+     * @return the policy which chooses the resolution and quality of uploads, and through
+     *         which the user's ceiling can be set.
+     */
+    public UploadPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Record the state of {@code session} and notify listeners.  May be called on any thread.
+     */
+    void setStatus(UploadSession session, int state, Photo photo) {
+        final UploadStatus status = new UploadStatus(session, state, photo);
+
+        synchronized (mStatuses) {
+            if (status.isActive()) {
+                mStatuses.put(status.key, status);
+            } else {
+                mStatuses.remove(status.key);
+            }
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListeners.isEmpty() && status.state == UploadStatus.STATE_COMPLETE) {
+                    mUnconsumedCompletions.put(status.key, status);
+                }
+
+                for (UploadListener listener : mListeners) {
+                    listener.onUploadChanged(status);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.upload;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.google.plus.samples.photohunt.NetworkUtils;
+import com.google.plus.samples.photohunt.image.PhotoTranscoder;
+
+/**
+ * Chooses the resolution and JPEG quality of each upload from the type of the active
+ * connection and the throughput recently measured on it.
+ *
+ * The largest {@link Settings} tier whose estimated size can be sent within
+ * {@link #TARGET_UPLOAD_SECONDS} is chosen, capped on metered networks and by an optional
+ * user-set ceiling.  Every completed upload is recorded with the settings chosen for it so that
+ * the tiers can be tuned.
+ */
+public class UploadPolicy {
+
+    private static final String TAG = UploadPolicy.class.getSimpleName();
+
+    /**
+     * Resolution and quality at which a photo is uploaded.
+     */
+    public static class Settings {
+
+        /** Long edge in pixels. */
+        public final int longEdge;
+
+        /** JPEG quality, 0 - 100. */
+        public final int quality;
+
+        /** Approximate size in bytes of a 4:3 photo encoded with these settings. */
+        final long estimatedBytes;
+
+        Settings(int longEdge, int quality, double bytesPerPixel) {
+            this.longEdge = longEdge;
+            this.quality = quality;
+            this.estimatedBytes = (long) (longEdge * longEdge * 0.75 * bytesPerPixel);
+        }
+
+        @Override
+        public String toString() {
+            return longEdge + "px@q" + quality;
+        }
+    }
+
+    /**
+     * A completed upload and the settings chosen for it.
+     */
+    public static class Record {
+
+        public final String connection;
+
+        public final int longEdge;
+
+        public final int quality;
+
+        public final long bytes;
+
+        public final long durationMs;
+
+        Record(UploadSession session, long bytes, long durationMs) {
+            this.connection = session.connection;
+            this.longEdge = session.longEdge;
+            this.quality = session.quality;
+            this.bytes = bytes;
+            this.durationMs = durationMs;
+        }
+
+        @Override
+        public String toString() {
+            return connection + " " + longEdge + "px@" + (quality > 0 ? "q" + quality : "original")
+                    + " " + bytes + " bytes in " + durationMs + "ms";
+        }
+    }
+
+    /** Tiers from best to smallest. */
+    private static final Settings[] TIERS = {
+            new Settings(PhotoTranscoder.DEFAULT_TARGET_LONG_EDGE, 85, 0.25),
+            new Settings(1600, 75, 0.18),
+            new Settings(1024, 70, 0.14),
+    };
+
+    /** Best tier used on metered networks unless the user's ceiling is lower. */
+    private static final int METERED_TIER = 1;
+
+    /** Time within which the chosen settings should be sent. */
+    private static final int TARGET_UPLOAD_SECONDS = 8;
+
+    /** Uploads smaller than this are dominated by latency and do not update the estimate. */
+    private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+
+    /** Weight of a new measurement in the throughput estimate. */
+    private static final double SMOOTHING = 0.3;
+
+    private static final int MAX_RECORDS = 20;
+
+    private static final String PREFS_NAME = "upload_policy";
+
+    private static final String PREF_MAX_LONG_EDGE = "max_long_edge";
+
+    private final Context mContext;
+
+    private final SharedPreferences mPrefs;
+
+    /** Smoothed throughput in bytes per second, by connection type. */
+    private final Map<String, Double> mThroughput = new HashMap<String, Double>();
+
+    private final LinkedList<Record> mRecords = new LinkedList<Record>();
+
+    public UploadPolicy(Context context) {
+        mContext = context.getApplicationContext();
+        mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Limit the long edge of uploads, whatever the connection.
+     *
+     * @param maxLongEdge the ceiling in pixels, or 0 to remove it.
+     */
+    public void setMaxLongEdge(int maxLongEdge) {
+        mPrefs.edit().putInt(PREF_MAX_LONG_EDGE, maxLongEdge).commit();
+    }
+
+    /**
+     * @return the user's ceiling on the long edge of uploads, or 0 if there is none.
+     */
+    public int getMaxLongEdge() {
+        return mPrefs.getInt(PREF_MAX_LONG_EDGE, 0);
+    }
+
+    /**
+     * Choose the settings for an upload about to be prepared on the active connection, and
+     * record them in {@code session}.
+     */
+    public Settings choose(UploadSession session) {
+        NetworkInfo network = NetworkUtils.getActiveNetworkInfo(mContext);
+        String connection = getConnectionName(network);
+        double throughput = getThroughput(connection, network);
+        int maxLongEdge = getMaxLongEdge();
+
+        int tier = NetworkUtils.isActiveNetworkMetered(mContext) ? METERED_TIER : 0;
+        while (tier < TIERS.length - 1
+                && (TIERS[tier].estimatedBytes / throughput > TARGET_UPLOAD_SECONDS
+                        || maxLongEdge > 0 && TIERS[tier].longEdge > maxLongEdge)) {
+            tier++;
+        }
+
+        Settings settings = TIERS[tier];
+        if (maxLongEdge > 0 && settings.longEdge > maxLongEdge) {
+            settings = new Settings(maxLongEdge, settings.quality, 0);
+        }
+
+        session.connection = connection;
+        session.longEdge = settings.longEdge;
+        session.quality = settings.quality;
+
+        Log.v(TAG, "Chose " + settings + " for " + session.key + " on " + connection + " at "
+                + (long) (throughput / 1024) + " KB/s");
+        return settings;
+    }
+
+    /**
+     * Record a completed upload, updating the throughput estimate for its connection.
+     *
+     * @param bytes the number of bytes sent.
+     * @param durationMs the time taken to send them.
+     */
+    public void recordUpload(UploadSession session, long bytes, long durationMs) {
+        Record record = new Record(session, bytes, durationMs);
+
+        synchronized (mRecords) {
+            mRecords.addLast(record);
+            if (mRecords.size() > MAX_RECORDS) {
+                mRecords.removeFirst();
+            }
+        }
+
+        if (session.connection != null && bytes >= MIN_SAMPLE_BYTES && durationMs > 0) {
+            double measured = bytes * 1000.0 / durationMs;
+
+            synchronized (mThroughput) {
+                Double previous = mThroughput.get(session.connection);
+                mThroughput.put(session.connection, previous == null
+                        ? measured : previous + SMOOTHING * (measured - previous));
+            }
+        }
+
+        Log.v(TAG, "Upload " + record);
+    }
+
+    /**
+     * @return the most recent completed uploads, oldest first.
+     */
+    public List<Record> getRecentRecords() {
+        synchronized (mRecords) {
+            return new ArrayList<Record>(mRecords);
+        }
+    }
+
+    private double getThroughput(String connection, NetworkInfo network) {
+        synchronized (mThroughput) {
+            Double measured = mThroughput.get(connection);
+            if (measured != null) {
+                return measured;
+            }
+        }
+
+        return getDefaultThroughput(network);
+    }
+
+    private static String getConnectionName(NetworkInfo network) {
+        if (network == null || !network.isConnected()) {
+            return "none";
+        }
+
+        if (network.getType() == ConnectivityManager.TYPE_MOBILE) {
+            return network.getTypeName() + "/" + network.getSubtypeName();
+        }
+
+        return network.getTypeName();
+    }
+
+    /**
+     * @return a conservative throughput in bytes per second for a connection which has not
+     *         yet been measured.
+     */
+    private static double getDefaultThroughput(NetworkInfo network) {
+        if (network == null || !network.isConnected()) {
+            return 1;
+        }
+
+        if (network.getType() != ConnectivityManager.TYPE_MOBILE) {
+            return 1024 * 1024;
+        }
+
+        switch (network.getSubtype()) {
+            case TelephonyManager.NETWORK_TYPE_LTE:
+            case TelephonyManager.NETWORK_TYPE_HSPAP:
+                return 512 * 1024;
+            case TelephonyManager.NETWORK_TYPE_UMTS:
+            case TelephonyManager.NETWORK_TYPE_HSDPA:
+            case TelephonyManager.NETWORK_TYPE_HSUPA:
+            case TelephonyManager.NETWORK_TYPE_HSPA:
+            case TelephonyManager.NETWORK_TYPE_EVDO_0:
+            case TelephonyManager.NETWORK_TYPE_EVDO_A:
+            case TelephonyManager.NETWORK_TYPE_EVDO_B:
+            case TelephonyManager.NETWORK_TYPE_EHRPD:
+                return 128 * 1024;
+            default:
+                return 16 * 1024;
+        }
+    }
+}
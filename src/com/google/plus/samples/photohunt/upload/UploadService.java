@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.upload;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.plus.samples.photohunt.NetworkUtils;
+import com.google.plus.samples.photohunt.app.PhotoHuntApp;
+import com.google.plus.samples.photohunt.auth.AuthUtil;
+import com.google.plus.samples.photohunt.model.Photo;
+
+/**
+ * Sends the uploads queued in the {@link UploadManager}, oldest first.
+ *
+ * Uploads pass through two stages.  A single staging thread prepares the next photo, decoding
+ * and encoding it into a request body on disk, while earlier photos are being sent, so encoding
+ * overlaps with the network.  Only one photo is decoded at a time and at most
+ * {@link #MAX_READY} staged bodies wait for a send slot, which bounds both memory and disk.  At
+ * most {@link #MAX_PARALLEL_UNMETERED} uploads are sent at once on Wi-Fi and similar networks
+ * and {@link #MAX_PARALLEL_METERED} on mobile networks.
+ *
+ * Uploads wait while there is no connection or no signed in user; an upload interrupted by the
+ * network is retried when connectivity changes or after a back-off, whichever comes first, and
+ * meanwhile does not hold a send slot or a staged slot.  The service stops itself when there is
+ * nothing left that it can send, logging the aggregate throughput of the batch it sent.
+ */
+public class UploadService extends Service {
+
+    private static final String TAG = UploadService.class.getSimpleName();
+
+    private static final int MAX_PARALLEL_UNMETERED = 2;
+
+    private static final int MAX_PARALLEL_METERED = 1;
+
+    /** Most staged bodies waiting for a send slot. */
+    private static final int MAX_READY = 1;
+
+    /** Delay before retrying interrupted uploads, doubled each time they are interrupted again. */
+    private static final long INITIAL_RETRY_MS = 30 * 1000;
+
+    private static final long MAX_RETRY_MS = 10 * 60 * 1000;
+
+    private UploadManager mManager;
+
+    private ExecutorService mStageExecutor;
+
+    private ExecutorService mSendExecutor;
+
+    private Handler mHandler;
+
+    /** Keys of the uploads currently being staged. */
+    private final Set<String> mStaging = new HashSet<String>();
+
+    /** Keys of the uploads currently being sent. */
+    private final Set<String> mSending = new HashSet<String>();
+
+    /** Keys of uploads which were interrupted and wait for a connectivity change or retry. */
+    private final Set<String> mDeferred = new HashSet<String>();
+
+    /** Number of consecutive retries which ended with an upload interrupted again. */
+    private int mRetryFailures;
+
+    private boolean mRetryScheduled;
+
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mRetryScheduled = false;
+            mDeferred.clear();
+            schedule();
+        }
+    };
+
+    private boolean mDestroyed;
+
+    /** True while the queue is being read from the session store. */
+    private boolean mLoading;
+
+    /** True if another schedule was requested while the queue was being read. */
+    private boolean mRescheduleRequested;
+
+    /** Time the current batch of uploads started, or 0 if the queue is idle. */
+    private long mBatchStart;
+
+    private int mBatchCount;
+
+    private long mBatchBytes;
+
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mHandler.removeCallbacks(mRetryRunnable);
+            mRetryScheduled = false;
+            mRetryFailures = 0;
+            mDeferred.clear();
+            schedule();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mManager = ((PhotoHuntApp) getApplication()).getUploadManager();
+        mHandler = new Handler();
+        mStageExecutor = Executors.newSingleThreadExecutor(new UploadThreadFactory("Stage"));
+        mSendExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_UNMETERED,
+                new UploadThreadFactory("Upload"));
+
+        registerReceiver(mConnectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        schedule();
+
+        // Uploads need a signed in user, so they are restarted on sign in rather than by the
+        // system.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        mDestroyed = true;
+        mHandler.removeCallbacks(mRetryRunnable);
+        unregisterReceiver(mConnectivityReceiver);
+        mStageExecutor.shutdown();
+        mSendExecutor.shutdown();
+
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * Read the upload queue on the store thread and then schedule it.  Runs on the main thread.
+     * Requests made while the queue is being read are coalesced into one more read, so that
+     * the queue is never scheduled from a read older than the latest change to it.
+     */
+    private void schedule() {
+        if (mLoading) {
+            mRescheduleRequested = true;
+            return;
+        }
+
+        mLoading = true;
+        mManager.executeOnStore(new Runnable() {
+            @Override
+            public void run() {
+                final List<UploadSession> pending = mManager.getStore().getAll();
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLoading = false;
+
+                        if (mDestroyed) {
+                            return;
+                        } else if (mRescheduleRequested) {
+                            mRescheduleRequested = false;
+                            schedule();
+                        } else {
+                            schedule(pending);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Start staging and sending as many of the {@code pending} uploads as the current network
+     * allows.  Runs on the main thread.
+     */
+    private void schedule(List<UploadSession> pending) {
+        NetworkInfo network = NetworkUtils.getActiveNetworkInfo(this);
+        boolean connected = network != null && network.isConnected();
+        boolean authenticated = AuthUtil.hasSession();
+        int limit = NetworkUtils.isActiveNetworkMetered(this)
+                ? MAX_PARALLEL_METERED : MAX_PARALLEL_UNMETERED;
+        boolean waitingForNetwork = false;
+
+        // Deferred bodies cannot be sent until they are retried, so they must not keep the next
+        // upload from being staged.
+        int ready = 0;
+        for (UploadSession session : pending) {
+            if (session.stagedPath != null && !mSending.contains(session.key)
+                    && !mDeferred.contains(session.key)) {
+                ready++;
+            }
+        }
+
+        for (UploadSession session : pending) {
+            if (mStaging.contains(session.key) || mSending.contains(session.key)) {
+                continue;
+            }
+
+            if (!connected || !authenticated || mDeferred.contains(session.key)) {
+                waitingForNetwork |= authenticated;
+                mManager.setStatus(session, UploadStatus.STATE_WAITING, null);
+            } else if (session.stagedPath != null && mSending.size() < limit) {
+                ready--;
+                send(session);
+            } else if (session.stagedPath == null && mStaging.isEmpty() && ready < MAX_READY) {
+                stage(session);
+            } else {
+                mManager.setStatus(session, UploadStatus.STATE_QUEUED, null);
+            }
+        }
+
+        if (mStaging.isEmpty() && mSending.isEmpty()) {
+            finishBatch();
+
+            if (!waitingForNetwork) {
+                stopSelf();
+            }
+        }
+    }
+
+    private void stage(final UploadSession session) {
+        startBatch();
+        mStaging.add(session.key);
+        mManager.setStatus(session, UploadStatus.STATE_STAGING, null);
+
+        mStageExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Photo duplicate = null;
+                int state;
+
+                try {
+                    duplicate = createUploader().prepare(session);
+                    state = duplicate != null
+                            ? UploadStatus.STATE_COMPLETE : UploadStatus.STATE_QUEUED;
+                } catch (ResumableUploader.UploadRejectedException e) {
+                    state = UploadStatus.STATE_FAILED;
+                } catch (IOException e) {
+                    Log.w(TAG, "Staging of " + session.key + " interrupted", e);
+                    state = UploadStatus.STATE_WAITING;
+                }
+
+                post(mStaging, session, state, duplicate, 0);
+            }
+        });
+    }
+
+    private void send(final UploadSession session) {
+        startBatch();
+        mSending.add(session.key);
+        mManager.setStatus(session, UploadStatus.STATE_UPLOADING, null);
+
+        mSendExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long offset = session.offset;
+                Photo photo = null;
+                int state;
+
+                try {
+                    photo = createUploader().send(session,
+                            new ResumableUploader.ProgressListener() {
+                                @Override
+                                public void onProgress(UploadSession session) {
+                                    mManager.setStatus(session, UploadStatus.STATE_UPLOADING,
+                                            null);
+                                }
+                            });
+                    state = UploadStatus.STATE_COMPLETE;
+                } catch (ResumableUploader.UploadRejectedException e) {
+                    state = UploadStatus.STATE_FAILED;
+                } catch (IOException e) {
+                    Log.w(TAG, "Upload of " + session.key + " interrupted", e);
+                    state = UploadStatus.STATE_WAITING;
+                }
+
+                post(mSending, session, state, photo, session.offset - offset);
+            }
+        });
+    }
+
+    private PhotoUploader createUploader() {
+        return new PhotoUploader(getContentResolver(), mManager.getStore(),
+                mManager.getUrlPool(), mManager.getPolicy(), mManager.getHashIndex(),
+                ((PhotoHuntApp) getApplication()).getEncodedImageCache());
+    }
+
+    /**
+     * Report the outcome of a stage on the main thread and schedule the next uploads.
+     */
+    private void post(final Set<String> stage, final UploadSession session, final int state,
+            final Photo photo, final long bytesSent) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stage.remove(session.key);
+
+                if (state == UploadStatus.STATE_WAITING) {
+                    defer(session);
+                } else if (state == UploadStatus.STATE_COMPLETE) {
+                    mBatchCount++;
+                    mRetryFailures = 0;
+                }
+
+                mBatchBytes += bytesSent;
+                mManager.setStatus(session, state, photo);
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * Hold back an interrupted upload until the next connectivity change or retry, whichever
+     * comes first.  Runs on the main thread.
+     */
+    private void defer(UploadSession session) {
+        mDeferred.add(session.key);
+
+        if (!mRetryScheduled) {
+            long delay = Math.min(MAX_RETRY_MS,
+                    INITIAL_RETRY_MS << Math.min(mRetryFailures, 10));
+            mRetryFailures++;
+            mRetryScheduled = true;
+            mHandler.postDelayed(mRetryRunnable, delay);
+        }
+    }
+
+    private void startBatch() {
+        if (mBatchStart == 0) {
+            mBatchStart = SystemClock.elapsedRealtime();
+            mBatchCount = 0;
+            mBatchBytes = 0;
+        }
+    }
+
+    private void finishBatch() {
+        if (mBatchStart != 0) {
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - mBatchStart);
+            Log.v(TAG, "Uploaded " + mBatchCount + " photos, " + mBatchBytes + " bytes in "
+                    + elapsed + "ms (" + (mBatchBytes / elapsed) + " KB/s aggregate)");
+            mBatchStart = 0;
+        }
+    }
+
+    static class UploadThreadFactory implements ThreadFactory {
+
+        private final String mName;
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        UploadThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, mName + " #" + mCount.getAndIncrement());
+        }
+    }
+}
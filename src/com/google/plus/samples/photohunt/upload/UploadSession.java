@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.upload;
+
+/**
+ * Persisted state of a queued or partially sent photo upload.
+ */
+public class UploadSession {
+
+    /**
+     * Identifies the upload; derived from the theme and source so that sending the same photo
+     * again resumes rather than restarts it.
+     */
+    public String key;
+
+    /**
+     * ID of the Theme to which the photo is being uploaded.
+     */
+    public long themeId;
+
+    /**
+     * Location of the photo being uploaded.
+     */
+    public String source;
+
+    /**
+     * Path of the staged request body, or null if the photo has not yet been staged.
+     */
+    public String stagedPath;
+
+    /**
+     * Content type of the staged request body.
+     */
+    public String contentType;
+
+    /**
+     * Length in bytes of the staged request body.
+     */
+    public long length;
+
+    /**
+     * URL to which the request body is sent, or null if one has not been obtained.
+     */
+    public String uploadUrl;
+
+    /**
+     * Number of bytes the server has acknowledged.
+     */
+    public long offset;
+
+    /**
+     * True once sending to {@link #uploadUrl} has started, after which the URL may only be
+     * reused if the server reports how much of the body it received.
+     */
+    public boolean sent;
+
+    /**
+     * True once the server has acknowledged part of the body, showing that it supports
+     * resuming an interrupted upload.
+     */
+    public boolean resumable;
+
+    /**
+     * Time the session was created, in milliseconds since the epoch.
+     */
+    public long created;
+
+    /**
+     * Connection on which the upload was prepared, as named by {@link UploadPolicy}.
+     */
+    public String connection;
+
+    /**
+     * Long edge in pixels chosen for the upload.
+     */
+    public int longEdge;
+
+    /**
+     * JPEG quality chosen for the upload, or 0 if the original bytes are sent.
+     */
+    public int quality;
+
+    /**
+     * SHA-1 of the source, or null if it has not been hashed.
+     */
+    public String contentHash;
+
+    public static String getKey(long themeId, String source) {
+        return themeId + ":" + source;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.upload;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.plus.samples.photohunt.Intents;
+
+/**
+ * Persists {@link UploadSession}s so that queued and interrupted uploads can be resumed,
+ * including after the process has been killed.
+ */
+public class UploadSessionStore {
+
+    private static final String TAG = UploadSessionStore.class.getSimpleName();
+
+    private static final String PREFS_NAME = "upload_sessions";
+
+    /** Directory in the cache directory in which request bodies are staged. */
+    private static final String STAGING_DIR = "uploads";
+
+    private final SharedPreferences mPrefs;
+
+    private final File mStagingDir;
+
+    private final Gson mGson = new Gson();
+
+    public UploadSessionStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mStagingDir = new File(context.getCacheDir(), STAGING_DIR);
+    }
+
+    /**
+     * @return the directory in which request bodies should be staged.
+     */
+    public File getStagingDir() {
+        if (!mStagingDir.isDirectory() && !mStagingDir.mkdirs()) {
+            Log.w(TAG, "Unable to create staging directory: " + mStagingDir);
+        }
+
+        return mStagingDir;
+    }
+
+    /**
+     * @return the session for {@code key}, or null if there is none.  If the staged body has
+     *         been lost, for example because the system cleared the cache directory, the
+     *         session is reset so that the photo is staged again.
+     */
+    public synchronized UploadSession get(String key) {
+        UploadSession session = parse(mPrefs.getString(key, null));
+
+        if (session != null && session.stagedPath != null
+                && !new File(session.stagedPath).isFile()) {
+            Log.w(TAG, "Staged upload lost, restaging: " + key);
+            session.stagedPath = null;
+            session.uploadUrl = null;
+            session.offset = 0;
+            session.sent = false;
+            session.resumable = false;
+            session.length = 0;
+            save(session);
+        }
+
+        return session;
+    }
+
+    /**
+     * @return all sessions which have not yet completed, oldest first.  This is the upload
+     *         queue.
+     */
+    public synchronized List<UploadSession> getAll() {
+        List<UploadSession> sessions = new ArrayList<UploadSession>();
+
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            UploadSession session = get(entry.getKey());
+            if (session != null) {
+                sessions.add(session);
+            }
+        }
+
+        // Insertion sort; there are only ever a handful of pending uploads.
+        for (int i = 1; i < sessions.size(); i++) {
+            for (int j = i; j > 0 && sessions.get(j - 1).created > sessions.get(j).created; j--) {
+                sessions.set(j, sessions.set(j - 1, sessions.get(j)));
+            }
+        }
+
+        return sessions;
+    }
+
+    public synchronized void save(UploadSession session) {
+        mPrefs.edit().putString(session.key, mGson.toJson(session)).commit();
+    }
+
+    /**
+     * Forget {@code session} and delete its staged body, and its source if that is a photo
+     * captured for the upload.
+     */
+    public synchronized void remove(UploadSession session) {
+        mPrefs.edit().remove(session.key).commit();
+
+        if (session.stagedPath != null) {
+            new File(session.stagedPath).delete();
+        }
+
+        if (session.source != null) {
+            Intents.deleteCapturedPhoto(Uri.parse(session.source));
+        }
+    }
+
+    private UploadSession parse(String json) {
+        if (json == null) {
+            return null;
+        }
+
+        try {
+            return mGson.fromJson(json, UploadSession.class);
+        } catch (JsonParseException e) {
+            Log.e(TAG, "Unable to parse upload session: " + json, e);
+            return null;
+        }
+    }
+}
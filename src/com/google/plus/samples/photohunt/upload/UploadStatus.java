@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.upload;
+
+import com.google.plus.samples.photohunt.model.Photo;
+
+/**
+ * Snapshot of the progress of an upload, as reported by {@link UploadManager}.
+ */
+public class UploadStatus {
+
+    /** Waiting for an upload slot. */
+    public static final int STATE_QUEUED = 0;
+
+    /** Waiting for a network connection or a signed in user. */
+    public static final int STATE_WAITING = 1;
+
+    /** Encoding the photo into a request body. */
+    public static final int STATE_STAGING = 2;
+
+    /** Sending the request body. */
+    public static final int STATE_UPLOADING = 3;
+
+    /** The upload succeeded; {@link #photo} is the uploaded photo. */
+    public static final int STATE_COMPLETE = 4;
+
+    /** The upload failed and will not be retried. */
+    public static final int STATE_FAILED = 5;
+
+    /**
+     * Key of the {@link UploadSession} this status describes.
+     */
+    public final String key;
+
+    /**
+     * ID of the Theme to which the photo is being uploaded.
+     */
+    public final long themeId;
+
+    /**
+     * Location of the photo being uploaded.
+     */
+    public final String source;
+
+    /**
+     * One of the {@code STATE_} constants.
+     */
+    public final int state;
+
+    /**
+     * Number of bytes the server has acknowledged.
+     */
+    public final long bytesSent;
+
+    /**
+     * Length in bytes of the request body, or 0 if it has not yet been staged.
+     */
+    public final long totalBytes;
+
+    /**
+     * The uploaded photo once the upload is complete, otherwise null.
+     */
+    public final Photo photo;
+
+    UploadStatus(UploadSession session, int state, Photo photo) {
+        this.key = session.key;
+        this.themeId = session.themeId;
+        this.source = session.source;
+        this.state = state;
+        this.bytesSent = session.offset;
+        this.totalBytes = session.length;
+        this.photo = photo;
+    }
+
+    /**
+     * @return true if the upload has not yet completed or failed.
+     */
+    public boolean isActive() {
+        return state != STATE_COMPLETE && state != STATE_FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadStatus[" + key + " state=" + state + " " + bytesSent + "/" + totalBytes
+                + "]";
+    }
+}
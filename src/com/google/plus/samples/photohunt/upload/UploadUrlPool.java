@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.plus.samples.photohunt.Endpoints;
+import com.google.plus.samples.photohunt.HttpUtils;
+import com.google.plus.samples.photohunt.auth.AuthManager;
+import com.google.plus.samples.photohunt.auth.AuthUtil;
+
+/**
+ * Keeps a small pool of upload URLs fetched ahead of time, so that starting an upload does not
+ * have to wait for a round trip to {@link Endpoints#photoUpload()}.
+ *
+ * Upload URLs expire on the server, so pooled URLs are discarded once they are older than
+ * {@link #URL_TTL_MS}.
+ */
+public class UploadUrlPool {
+
+    private static final String TAG = UploadUrlPool.class.getSimpleName();
+
+    private static final int POOL_SIZE = 2;
+
+    /** Upload URLs are valid for ten minutes; leave a margin for the upload itself. */
+    private static final long URL_TTL_MS = 8 * 60 * 1000;
+
+    private final LinkedList<PooledUrl> mUrls = new LinkedList<PooledUrl>();
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private boolean mFilling;
+
+    /**
+     * Fetch upload URLs in the background until the pool is full.  Does nothing unless the
+     * user is signed in.
+     */
+    public void prefill() {
+        synchronized (mUrls) {
+            if (mFilling || !AuthUtil.hasSession()) {
+                return;
+            }
+
+            mFilling = true;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (AuthUtil.hasSession() && size() < POOL_SIZE) {
+                        String url = fetch();
+                        if (url == null) {
+                            break;
+                        }
+
+                        synchronized (mUrls) {
+                            mUrls.add(new PooledUrl(url));
+                        }
+                    }
+                } finally {
+                    synchronized (mUrls) {
+                        mFilling = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Take an upload URL from the pool and start replacing it.
+     *
+     * @return an upload URL which has not expired, or null if the pool is empty.
+     */
+    public String take() {
+        String url = null;
+
+        synchronized (mUrls) {
+            removeExpired();
+
+            if (!mUrls.isEmpty()) {
+                url = mUrls.removeFirst().url;
+            }
+        }
+
+        prefill();
+        return url;
+    }
+
+    /**
+     * Take an upload URL from the pool, or fetch one if the pool is empty.
+     *
+     * @return the upload URL, or null if one could not be obtained.
+     */
+    public String takeOrFetch() {
+        String url = take();
+        return url != null ? url : fetch();
+    }
+
+    private int size() {
+        synchronized (mUrls) {
+            removeExpired();
+            return mUrls.size();
+        }
+    }
+
+    private void removeExpired() {
+        long now = SystemClock.elapsedRealtime();
+
+        for (Iterator<PooledUrl> i = mUrls.iterator(); i.hasNext();) {
+            if (i.next().expires <= now) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Request a new upload URL from the PhotoHunt service.
+     *
+     * @return the upload URL, or null if one could not be obtained.
+     */
+    public static String fetch() {
+        try {
+            // Replayed once if the session has expired.
+            return AuthManager.getInstance().execute(new AuthManager.Request<String>() {
+                @Override
+                public String execute() throws IOException {
+                    return fetchOnce();
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private static String fetchOnce() throws IOException {
+        HttpURLConnection urlConnection = null;
+        String uploadUrl = null;
+        
+        try {
+            urlConnection = (HttpURLConnection) new URL(Endpoints.photoUpload()).openConnection();
+            urlConnection.setRequestMethod("POST");
+            urlConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            urlConnection.setRequestProperty("Content-Length", "0");
+            urlConnection.setFixedLengthStreamingMode(0);
+            int generation = AuthUtil.setAuthHeaders(urlConnection);
+            AuthUtil.checkAuthorized(urlConnection, generation);
+
+            int responseCode = urlConnection.getResponseCode();
+            
+            if (responseCode != 200) {
+                Log.e(TAG, "Unable to fetch upload URL (" + Endpoints.photoUpload() + "): "
+                        + responseCode);
+                return null;
+            }
+
+            InputStream is = urlConnection.getInputStream();
+            uploadUrl = new String(HttpUtils.getContent(is).toByteArray(), "UTF-8");
+            
+            Log.v(TAG, "Obtained an upload URL: " + uploadUrl);
+        } catch (MalformedURLException e) {
+            Log.e(TAG, e.getMessage(), e);
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, e.getMessage(), e);
+        } finally {
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+
+        return uploadUrl;
+    }
+
+    private static class PooledUrl {
+
+        final String url;
+
+        final long expires;
+
+        PooledUrl(String url) {
+            this.url = url;
+            this.expires = SystemClock.elapsedRealtime() + URL_TTL_MS;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
@@ -113,6 +114,10 @@ public class PinnedHeaderListView extends ListView
     private int mHeaderPaddingLeft;
     private int mHeaderWidth;
 
+    private int mLastFirstVisibleItem = -1;
+    private long mLastFirstVisibleTime;
+    private float mScrollVelocity;
+
     public PinnedHeaderListView(Context context) {
         this(context, null);
     }
@@ -161,6 +166,8 @@ public class PinnedHeaderListView extends ListView
     		int firstVisibleItem,
     		int visibleItemCount,
             int totalItemCount) {
+        updateScrollVelocity(firstVisibleItem);
+
         if (mAdapter != null) {
             int count = mAdapter.getPinnedHeaderCount();
             if (count != mSize) {
@@ -197,8 +204,38 @@ public class PinnedHeaderListView extends ListView
         return mSize > 0 ? 0 : super.getTopFadingEdgeStrength();
     }
 
+    /**
+     * Returns the current scroll velocity in list items per second. The velocity is positive
+     * when scrolling towards the end of the list, negative when scrolling towards the start
+     * and zero when the list is idle.
+     */
+    public float getScrollVelocity() {
+        return mScrollVelocity;
+    }
+
+    private void updateScrollVelocity(int firstVisibleItem) {
+        if (firstVisibleItem == mLastFirstVisibleItem) {
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - mLastFirstVisibleTime;
+        if (mLastFirstVisibleItem != -1 && elapsed > 0) {
+            float velocity = (firstVisibleItem - mLastFirstVisibleItem) * 1000f / elapsed;
+
+            // Smooth the velocity since items are rarely the same height.
+            mScrollVelocity = mScrollVelocity == 0 ? velocity : (mScrollVelocity + velocity) / 2;
+        }
+
+        mLastFirstVisibleItem = firstVisibleItem;
+        mLastFirstVisibleTime = now;
+    }
+
     public void onScrollStateChanged(AbsListView view, int scrollState) {
         mScrollState = scrollState;
+        if (scrollState == SCROLL_STATE_IDLE) {
+            mScrollVelocity = 0;
+        }
         if (mOnScrollListener != null) {
             mOnScrollListener.onScrollStateChanged(this, scrollState);
         }
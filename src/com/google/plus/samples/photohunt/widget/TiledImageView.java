@@ -0,0 +1,751 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.samples.photohunt.widget;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import com.google.plus.samples.photohunt.HttpUtils;
+import com.google.plus.samples.photohunt.image.ExifOrientation;
+
+/**
+ * Displays a large image which can be panned and zoomed without ever decoding it in full.
+ *
+ * A low resolution preview (typically the cached thumbnail) is drawn immediately and stretched
+ * to the dimensions of the full image.  Once the full-size image file is available only the
+ * tiles covering the visible region are decoded, at a sample size matching the current zoom
+ * level, and drawn over the preview.  Decoded tiles are held in a small LRU sized to the view,
+ * so memory use is bounded by the screen size rather than the source resolution.
+ *
+ * Tiles are decoded with {@link BitmapRegionDecoder} where available (API level 10).  Older
+ * platforms fall back to decoding the whole image once at a sample size bounded by the view.
+ *
+ * The full image is shown upright according to its EXIF orientation.  The view works in upright
+ * coordinates, mapping each tile back to the stored orientation to decode it and rotating it
+ * as it is drawn.
+ */
+public class TiledImageView extends View {
+
+    private static final String TAG = TiledImageView.class.getSimpleName();
+
+    /** Edge length, in decoded pixels, of each tile. */
+    private static final int TILE_SIZE = 256;
+
+    /** Maximum zoom expressed in view pixels per source pixel. */
+    private static final float MAX_SCALE = 2f;
+
+    /** Number of screens of tiles retained while panning and zooming. */
+    private static final int CACHED_SCREENS = 2;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private final RectF mDst = new RectF();
+
+    private final RectF mTileBounds = new RectF();
+
+    private final Matrix mTileMatrix = new Matrix();
+
+    private final Handler mMainHandler = new Handler();
+
+    private final ScaleGestureDetector mScaleDetector;
+
+    private final GestureDetector mGestureDetector;
+
+    /** Decoded tiles keyed by {@link #tileKey(int, int, int)}, least recently drawn first. */
+    private final LinkedHashMap<Long, Bitmap> mTiles = new LinkedHashMap<Long, Bitmap>(32, 0.75f,
+            true);
+
+    /** Tiles which have been requested from the decode thread but not yet delivered. */
+    private final Set<Long> mPendingTiles = new HashSet<Long>();
+
+    private HandlerThread mDecodeThread;
+
+    private Handler mDecodeHandler;
+
+    private Bitmap mPreview;
+
+    private TileSource mSource;
+
+    /** Clockwise rotation in degrees which makes the full image upright. */
+    private int mRotation;
+
+    private int mImageWidth;
+
+    private int mImageHeight;
+
+    private float mScale;
+
+    private float mMinScale;
+
+    private float mOffsetX;
+
+    private float mOffsetY;
+
+    private boolean mZoomed;
+
+    private int mMaxTiles;
+
+    /** Incremented whenever the image changes so that stale decodes can be discarded. */
+    private volatile int mGeneration;
+
+    /** Sample size for the current zoom level; tiles for other levels are not decoded. */
+    private volatile int mSampleSize = 1;
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+
+        mScaleDetector = new ScaleGestureDetector(context, new ScaleListener());
+        mGestureDetector = new GestureDetector(context, new GestureListener());
+    }
+
+    /**
+     * Set the low resolution image to display until tiles of the full image are available.  The
+     * preview is not recycled by this view.
+     *
+     * @param preview the preview image, or null.
+     */
+    public void setPreview(Bitmap preview) {
+        mPreview = preview;
+
+        if (mSource == null && preview != null) {
+            setImageSize(preview.getWidth(), preview.getHeight());
+        }
+
+        invalidate();
+    }
+
+    /**
+     * Display the full-size image stored in {@code file}.  The file is opened on a background
+     * thread and the preview remains visible until the first tiles are decoded.
+     *
+     * @param file the full-size image.
+     */
+    public void setImageFile(final File file) {
+        releaseSource();
+        ensureDecodeThread();
+
+        final int generation = mGeneration;
+        final int maxEdge = Math.max(getWidth(), getHeight()) * 2;
+
+        mDecodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                TileSource source = null;
+
+                try {
+                    source = openTileSource(file, maxEdge);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to open " + file, e);
+                } catch (OutOfMemoryError e) {
+                    Log.e(TAG, "Unable to open " + file, e);
+                }
+
+                final TileSource result = source;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (result == null) {
+                            return;
+                        } else if (generation != mGeneration) {
+                            recycleSource(result);
+                        } else {
+                            setSource(result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Release the preview, the full-size image and all decoded tiles.
+     */
+    public void recycle() {
+        releaseSource();
+        mPreview = null;
+        mImageWidth = 0;
+        mImageHeight = 0;
+        mZoomed = false;
+
+        if (mDecodeThread != null) {
+            // Quit once the queued work, including recycling the source, has completed.
+            final HandlerThread decodeThread = mDecodeThread;
+            mDecodeHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    decodeThread.quit();
+                }
+            });
+
+            mDecodeThread = null;
+            mDecodeHandler = null;
+        }
+
+        invalidate();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        recycle();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        int columns = w / TILE_SIZE + 2;
+        int rows = h / TILE_SIZE + 2;
+        mMaxTiles = columns * rows * CACHED_SCREENS;
+
+        updateMinScale();
+        if (!mZoomed) {
+            mScale = mMinScale;
+        }
+        constrainOffsets();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        if (mImageWidth == 0 || mImageHeight == 0) {
+            return;
+        }
+
+        if (mPreview != null) {
+            mDst.set(mOffsetX, mOffsetY, mOffsetX + mImageWidth * mScale,
+                    mOffsetY + mImageHeight * mScale);
+            canvas.drawBitmap(mPreview, null, mDst, mPaint);
+        }
+
+        if (mSource == null) {
+            return;
+        }
+
+        int sampleSize = getSampleSize(mScale);
+        int tileSpan = TILE_SIZE * sampleSize;
+        mSampleSize = sampleSize;
+
+        // Visible region in upright image coordinates.
+        int left = Math.max(0, (int) (-mOffsetX / mScale));
+        int top = Math.max(0, (int) (-mOffsetY / mScale));
+        int right = Math.min(mImageWidth, (int) Math.ceil((getWidth() - mOffsetX) / mScale));
+        int bottom = Math.min(mImageHeight, (int) Math.ceil((getHeight() - mOffsetY) / mScale));
+
+        for (int row = top / tileSpan; row * tileSpan < bottom; row++) {
+            for (int column = left / tileSpan; column * tileSpan < right; column++) {
+                long key = tileKey(sampleSize, row, column);
+                Bitmap tile = mTiles.get(key);
+                int x = column * tileSpan;
+                int y = row * tileSpan;
+
+                if (tile != null) {
+                    mDst.set(mOffsetX + x * mScale, mOffsetY + y * mScale,
+                            mOffsetX + Math.min(x + tileSpan, mImageWidth) * mScale,
+                            mOffsetY + Math.min(y + tileSpan, mImageHeight) * mScale);
+                    drawTile(canvas, tile, mDst);
+                } else {
+                    requestTile(key, sampleSize, new Rect(x, y,
+                            Math.min(x + tileSpan, mImageWidth),
+                            Math.min(y + tileSpan, mImageHeight)));
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        mScaleDetector.onTouchEvent(event);
+        mGestureDetector.onTouchEvent(event);
+        return true;
+    }
+
+    /**
+     * Draw a tile decoded in the stored orientation upright into {@code dst}.
+     */
+    private void drawTile(Canvas canvas, Bitmap tile, RectF dst) {
+        mTileMatrix.setRotate(mRotation);
+        mTileBounds.set(0, 0, tile.getWidth(), tile.getHeight());
+        mTileMatrix.mapRect(mTileBounds);
+        mTileMatrix.postTranslate(-mTileBounds.left, -mTileBounds.top);
+        mTileMatrix.postScale(dst.width() / mTileBounds.width(),
+                dst.height() / mTileBounds.height());
+        mTileMatrix.postTranslate(dst.left, dst.top);
+        canvas.drawBitmap(tile, mTileMatrix, mPaint);
+    }
+
+    /**
+     * @param uprightRegion the region to decode in upright coordinates.
+     */
+    private void requestTile(final long key, final int sampleSize, Rect uprightRegion) {
+        if (mPendingTiles.contains(key) || mDecodeHandler == null) {
+            return;
+        }
+
+        mPendingTiles.add(key);
+
+        final int generation = mGeneration;
+        final TileSource source = mSource;
+        final Rect region = toSourceRegion(uprightRegion, mRotation, source.getWidth(),
+                source.getHeight());
+
+        mDecodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap tile = null;
+
+                // Skip tiles for an image or zoom level that is no longer displayed.
+                if (generation == mGeneration && sampleSize == mSampleSize) {
+                    try {
+                        tile = source.decodeTile(region, sampleSize);
+                    } catch (OutOfMemoryError e) {
+                        Log.w(TAG, "Out of memory decoding tile " + region, e);
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Unable to decode tile " + region, e);
+                    }
+                }
+
+                final Bitmap result = tile;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTileDecoded(generation, key, result);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onTileDecoded(int generation, long key, Bitmap tile) {
+        if (generation != mGeneration) {
+            if (tile != null) {
+                tile.recycle();
+            }
+            return;
+        }
+
+        mPendingTiles.remove(key);
+
+        if (tile != null) {
+            mTiles.put(key, tile);
+            trimTiles();
+            invalidate();
+        }
+    }
+
+    /** Evict the least recently drawn tiles.  Only called outside of {@link #onDraw}. */
+    private void trimTiles() {
+        Iterator<Map.Entry<Long, Bitmap>> iterator = mTiles.entrySet().iterator();
+
+        while (mTiles.size() > mMaxTiles && iterator.hasNext()) {
+            iterator.next().getValue().recycle();
+            iterator.remove();
+        }
+    }
+
+    private void clearTiles() {
+        for (Bitmap tile : mTiles.values()) {
+            tile.recycle();
+        }
+
+        mTiles.clear();
+        mPendingTiles.clear();
+    }
+
+    private void setSource(TileSource source) {
+        mSource = source;
+        mRotation = source.getRotation();
+
+        if (mRotation == 90 || mRotation == 270) {
+            setImageSize(source.getHeight(), source.getWidth());
+        } else {
+            setImageSize(source.getWidth(), source.getHeight());
+        }
+        invalidate();
+    }
+
+    /**
+     * Map a region of the upright image back onto the image as stored, which is {@code width}
+     * by {@code height} pixels and is made upright by rotating it {@code rotation} degrees
+     * clockwise.
+     */
+    private static Rect toSourceRegion(Rect upright, int rotation, int width, int height) {
+        switch (rotation) {
+            case 90:
+                return new Rect(upright.top, height - upright.right, upright.bottom,
+                        height - upright.left);
+            case 180:
+                return new Rect(width - upright.right, height - upright.bottom,
+                        width - upright.left, height - upright.top);
+            case 270:
+                return new Rect(width - upright.bottom, upright.left, width - upright.top,
+                        upright.right);
+            default:
+                return upright;
+        }
+    }
+
+    private void releaseSource() {
+        mGeneration++;
+        clearTiles();
+
+        if (mSource != null) {
+            recycleSource(mSource);
+            mSource = null;
+        }
+    }
+
+    /** Recycle a tile source on the decode thread, after any decode already using it. */
+    private void recycleSource(final TileSource source) {
+        if (mDecodeHandler == null) {
+            source.recycle();
+            return;
+        }
+
+        mDecodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                source.recycle();
+            }
+        });
+    }
+
+    private void ensureDecodeThread() {
+        if (mDecodeThread == null) {
+            mDecodeThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            mDecodeThread.start();
+            mDecodeHandler = new Handler(mDecodeThread.getLooper());
+        }
+    }
+
+    /**
+     * Change the dimensions of the displayed image, preserving the on-screen size and position
+     * of the image when switching from the preview to the full-size image.
+     */
+    private void setImageSize(int width, int height) {
+        if (mImageWidth > 0 && width > 0) {
+            mScale = mScale * mImageWidth / width;
+        }
+
+        mImageWidth = width;
+        mImageHeight = height;
+        updateMinScale();
+
+        if (!mZoomed) {
+            mScale = mMinScale;
+        }
+
+        constrainOffsets();
+    }
+
+    private void updateMinScale() {
+        if (mImageWidth == 0 || mImageHeight == 0 || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+
+        mMinScale = Math.min((float) getWidth() / mImageWidth, (float) getHeight() / mImageHeight);
+    }
+
+    private float getMaxScale() {
+        return Math.max(MAX_SCALE, mMinScale);
+    }
+
+    /** Center the image along any axis where it is smaller than the view, else clamp. */
+    private void constrainOffsets() {
+        mOffsetX = constrainOffset(mOffsetX, mImageWidth * mScale, getWidth());
+        mOffsetY = constrainOffset(mOffsetY, mImageHeight * mScale, getHeight());
+    }
+
+    private static float constrainOffset(float offset, float imageSize, int viewSize) {
+        if (imageSize <= viewSize) {
+            return (viewSize - imageSize) / 2;
+        }
+
+        return Math.max(viewSize - imageSize, Math.min(0, offset));
+    }
+
+    private void zoomTo(float scale, float focusX, float focusY) {
+        float newScale = Math.max(mMinScale, Math.min(getMaxScale(), scale));
+
+        mOffsetX = focusX - (focusX - mOffsetX) * newScale / mScale;
+        mOffsetY = focusY - (focusY - mOffsetY) * newScale / mScale;
+        mScale = newScale;
+        mZoomed = newScale > mMinScale;
+
+        constrainOffsets();
+        invalidate();
+    }
+
+    /**
+     * @return the largest power of two sample size which still provides at least one decoded
+     *         pixel per view pixel at the given scale.
+     */
+    private static int getSampleSize(float scale) {
+        int sampleSize = 1;
+
+        while (sampleSize * 2 * scale <= 1) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    private static long tileKey(int sampleSize, int row, int column) {
+        return ((long) sampleSize << 48) | ((long) row << 24) | column;
+    }
+
+    private static TileSource openTileSource(File file, int maxEdge) throws IOException {
+        int rotation = readRotation(file);
+
+        if (android.os.Build.VERSION.SDK_INT >= 10) {
+            return new RegionTileSource(file, rotation);
+        } else {
+            return new SampledTileSource(file, maxEdge, rotation);
+        }
+    }
+
+    private static int readRotation(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file),
+                HttpUtils.IO_BUFFER_SIZE);
+        try {
+            return ExifOrientation.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            zoomTo(mScale * detector.getScaleFactor(), detector.getFocusX(),
+                    detector.getFocusY());
+            return true;
+        }
+    }
+
+    private class GestureListener extends GestureDetector.SimpleOnGestureListener {
+
+        @Override
+        public boolean onDown(MotionEvent e) {
+            return true;
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX,
+                float distanceY) {
+            mOffsetX -= distanceX;
+            mOffsetY -= distanceY;
+            constrainOffsets();
+            invalidate();
+            return true;
+        }
+
+        @Override
+        public boolean onDoubleTap(MotionEvent e) {
+            // Toggle between fitting the view and one source pixel per view pixel.
+            zoomTo(mScale < 1 ? 1 : mMinScale, e.getX(), e.getY());
+            return true;
+        }
+    }
+
+    /**
+     * Decodes regions of the full-size image.  Only accessed from the decode thread.
+     */
+    private interface TileSource {
+
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * @return the clockwise rotation in degrees which makes the image upright.
+         */
+        int getRotation();
+
+        /**
+         * @param region the region to decode in the coordinates of the image as stored.
+         * @param sampleSize the power of two by which to subsample the region.
+         * @return the decoded region, or null if it could not be decoded.
+         */
+        Bitmap decodeTile(Rect region, int sampleSize);
+
+        void recycle();
+    }
+
+    @SuppressLint("NewApi")
+    private static class RegionTileSource implements TileSource {
+
+        private final BitmapRegionDecoder mDecoder;
+
+        private final int mRotation;
+
+        public RegionTileSource(File file, int rotation) throws IOException {
+            mDecoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+            mRotation = rotation;
+        }
+
+        @Override
+        public int getRotation() {
+            return mRotation;
+        }
+
+        @Override
+        public int getWidth() {
+            return mDecoder.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return mDecoder.getHeight();
+        }
+
+        @Override
+        public Bitmap decodeTile(Rect region, int sampleSize) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            return mDecoder.decodeRegion(region, options);
+        }
+
+        @Override
+        public void recycle() {
+            mDecoder.recycle();
+        }
+    }
+
+    /**
+     * Fallback for platforms without {@link BitmapRegionDecoder}; decodes the whole image once
+     * at a sample size which keeps its longest edge within {@code maxEdge} pixels.
+     */
+    private static class SampledTileSource implements TileSource {
+
+        private final Bitmap mBitmap;
+
+        private final int mWidth;
+
+        private final int mHeight;
+
+        private final int mSampleSize;
+
+        private final int mRotation;
+
+        public SampledTileSource(File file, int maxEdge, int rotation) throws IOException {
+            mRotation = rotation;
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), options);
+
+            mWidth = options.outWidth;
+            mHeight = options.outHeight;
+            if (mWidth <= 0 || mHeight <= 0) {
+                throw new IOException("Image could not be decoded");
+            }
+
+            int sampleSize = 1;
+            while (Math.max(mWidth, mHeight) / sampleSize > maxEdge) {
+                sampleSize *= 2;
+            }
+
+            options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+            mSampleSize = sampleSize;
+            mBitmap = BitmapFactory.decodeFile(file.getPath(), options);
+            if (mBitmap == null) {
+                throw new IOException("Image could not be decoded");
+            }
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public int getRotation() {
+            return mRotation;
+        }
+
+        @Override
+        public Bitmap decodeTile(Rect region, int sampleSize) {
+            int x = Math.min(region.left / mSampleSize, mBitmap.getWidth() - 1);
+            int y = Math.min(region.top / mSampleSize, mBitmap.getHeight() - 1);
+            int width = Math.max(1, Math.min(region.width() / mSampleSize,
+                    mBitmap.getWidth() - x));
+            int height = Math.max(1, Math.min(region.height() / mSampleSize,
+                    mBitmap.getHeight() - y));
+
+            Matrix matrix = null;
+            if (sampleSize > mSampleSize) {
+                matrix = new Matrix();
+                matrix.setScale((float) mSampleSize / sampleSize, (float) mSampleSize / sampleSize);
+            }
+
+            return Bitmap.createBitmap(mBitmap, x, y, width, height, matrix, true);
+        }
+
+        @Override
+        public void recycle() {
+            mBitmap.recycle();
+        }
+    }
+}